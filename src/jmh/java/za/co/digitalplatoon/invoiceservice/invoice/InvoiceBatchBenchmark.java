@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import org.h2.tools.Server;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.orm.jpa.SharedEntityManagerCreator;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import za.co.digitalplatoon.invoiceservice.Application;
+
+/**
+ * Measures adding invoices one at a time, as POST /invoices does, against
+ * adding them as a batch, as POST /invoices/batch does. Both add the invoices
+ * to the PDF outbox, which is not polled while the benchmark runs.
+ * <p>
+ * The application connects to an H2 server over TCP so that each statement
+ * pays for a database round trip, as it does in production. The H2 driver
+ * runs each row of a JDBC batch as its own command, so against H2 the batch
+ * only saves the transactions and the sequence calls. To measure the insert
+ * batching, pass the URL of a database whose driver sends a batch at once,
+ * e.g. -jvmArgsAppend -Dspring.datasource.url=jdbc:postgresql://...?reWriteBatchedInserts=true
+ * with its driver on the class path.
+ *
+ * @author William Gadney
+ */
+// JMH annotations
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+// Each invocation is long enough to be measured on its own but the
+// application needs several of them to warm up
+@Warmup(iterations = 10)
+@Measurement(iterations = 10)
+@Fork(1)
+public class InvoiceBatchBenchmark {
+
+    @Param({"100"})
+    private int invoiceCount;
+
+    @Param({"10", "200"})
+    private int lineItemCount;
+
+    private Server server;
+
+    private ConfigurableApplicationContext context;
+
+    private EntityManager em;
+
+    private TransactionTemplate transactionTemplate;
+
+    private InvoicePdfOutbox pdfOutbox;
+
+    private InvoiceBatchService batchService;
+
+    private ObjectWriter writer;
+
+    private List<Invoice> invoices;
+
+    private byte[] body;
+
+    @Setup(Level.Trial)
+    public void startApplication() throws SQLException {
+        String url = System.getProperty("spring.datasource.url");
+        if (url == null) {
+            server = Server.createTcpServer("-tcpPort", "0").start();
+            url = "jdbc:h2:tcp://localhost:" + server.getPort() + "/mem:invoice-benchmark;DB_CLOSE_DELAY=-1";
+        }
+        // Command line arguments override application.yml
+        context = new SpringApplicationBuilder(Application.class)
+                .run(
+                        "--server.port=0",
+                        "--spring.datasource.url=" + url,
+                        "--spring.jpa.properties.hibernate.show_sql=false",
+                        // Do not render the PDF files of the added invoices while measuring
+                        "--invoice.pdf-outbox.poll-interval=3600000",
+                        "--invoice.pdf-outbox.recovery-interval=3600000",
+                        "--logging.level.root=WARN");
+        em = SharedEntityManagerCreator.createSharedEntityManager(context.getBean(EntityManagerFactory.class));
+        transactionTemplate = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+        pdfOutbox = context.getBean(InvoicePdfOutbox.class);
+        batchService = context.getBean(InvoiceBatchService.class);
+        writer = context.getBean(ObjectMapper.class).writerWithView(Invoice.View.Add.class);
+    }
+
+    @Setup(Level.Invocation)
+    public void createInvoices() throws IOException {
+        invoices = new ArrayList<>(invoiceCount);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < invoiceCount; i++) {
+            Invoice invoice = JasperReportsInvoiceFactory.getInvoice(lineItemCount);
+            invoices.add(invoice);
+            out.write(writer.writeValueAsBytes(invoice));
+            out.write('\n');
+        }
+        body = out.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopApplication() {
+        context.close();
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    /**
+     * Add each invoice in its own transaction
+     */
+    @Benchmark
+    public List<Invoice> addEach() {
+        for (Invoice invoice : invoices) {
+            transactionTemplate.execute(status -> {
+                em.persist(invoice);
+                pdfOutbox.add(invoice);
+                return null;
+            });
+        }
+        return invoices;
+    }
+
+    /**
+     * Read, validate and add the invoices from a newline delimited JSON stream
+     */
+    @Benchmark
+    public InvoiceBatchResult addBatch() throws IOException {
+        return batchService.add(new ByteArrayInputStream(body), null, null);
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the JSON serialization of invoices under each of the invoice views
+ *
+ * @author William Gadney
+ */
+// JMH annotations
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvoiceJsonBenchmark {
+
+    @Param({"List", "All", "Add", "Edit"})
+    private String view;
+
+    @Param({"1", "10", "100", "1000"})
+    private int lineItemCount;
+
+    private ObjectWriter writer;
+
+    private Invoice invoice;
+
+    @Setup
+    public void setUp() throws ClassNotFoundException {
+        // Configured like the application object mapper in application.yml
+        ObjectMapper objectMapper = new ObjectMapper()
+                .configure(MapperFeature.DEFAULT_VIEW_INCLUSION, true)
+                .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+        Class<?> viewClass = Class.forName(Invoice.View.class.getName() + "$" + view);
+        writer = objectMapper.writerWithView(viewClass);
+        invoice = JasperReportsInvoiceFactory.getInvoice(lineItemCount);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        return writer.writeValueAsBytes(invoice);
+    }
+
+}
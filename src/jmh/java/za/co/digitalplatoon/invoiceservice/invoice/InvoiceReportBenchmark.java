@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.concurrent.TimeUnit;
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JasperPrint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures filling the invoice report and exporting it to PDF
+ *
+ * @author William Gadney
+ */
+// JMH annotations
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InvoiceReportBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    private int lineItemCount;
+
+    private InvoicePdfRenderer pdfRenderer;
+
+    private Invoice invoice;
+
+    private JasperPrint jasperPrint;
+
+    @Setup
+    public void setUp() throws JRException {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        // Do not check for changed report templates while measuring
+        pdfRenderer = new InvoicePdfRenderer(new InvoiceReportTemplates(meterRegistry, 0), meterRegistry);
+        invoice = JasperReportsInvoiceFactory.getInvoice(lineItemCount);
+        jasperPrint = pdfRenderer.fill(invoice);
+    }
+
+    @Benchmark
+    public JasperPrint fill() throws JRException {
+        return pdfRenderer.fill(invoice);
+    }
+
+    @Benchmark
+    public byte[] export() throws JRException {
+        return pdfRenderer.export(jasperPrint);
+    }
+
+    @Benchmark
+    public byte[] renderPdf() throws JRException {
+        return pdfRenderer.renderPdf(invoice);
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import za.co.digitalplatoon.invoiceservice.Application;
+
+/**
+ * Measures summing the invoice totals by client and period in the database
+ * against loading every invoice and summing the totals in Java, as finance
+ * did with the full invoice list.
+ * <p>
+ * The database is seeded with 1 000 000 invoices for 100 clients over three
+ * years.
+ *
+ * @author William Gadney
+ */
+// JMH annotations
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InvoiceSummaryBenchmark {
+
+    private static final int INVOICE_COUNT = 1_000_000;
+
+    @Param({"DAY", "MONTH", "YEAR"})
+    private InvoiceSummary.Period period;
+
+    private ConfigurableApplicationContext context;
+
+    private InvoiceRepository invoiceRepository;
+
+    private TransactionTemplate readOnlyTransaction;
+
+    @Setup(Level.Trial)
+    public void startApplication() {
+        // Command line arguments override application.yml
+        context = new SpringApplicationBuilder(Application.class)
+                .run(
+                        "--server.port=0",
+                        // Stop H2 from returning the previous result of an
+                        // identical query instead of running it again
+                        "--spring.datasource.url=jdbc:h2:mem:invoice-summary-benchmark;"
+                        + "DB_CLOSE_DELAY=-1;OPTIMIZE_REUSE_RESULTS=0",
+                        "--spring.jpa.properties.hibernate.show_sql=false",
+                        "--logging.level.root=WARN");
+        invoiceRepository = context.getBean(InvoiceRepository.class);
+        readOnlyTransaction = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+        readOnlyTransaction.setReadOnly(true);
+        context.getBean(JdbcTemplate.class).update("INSERT INTO invoice "
+                + "(invoice_id, version, client, vat_rate, invoice_date, created_by, sub_total, vat, total) "
+                + "SELECT x, 0, CONCAT('Client ', MOD(x, 100)), 15, DATEADD('DAY', -MOD(x, 1096), DATE '2018-06-30'), "
+                + "'willy', MOD(x, 1000) + 0.99, ROUND((MOD(x, 1000) + 0.99) * 0.15, 2), "
+                + "MOD(x, 1000) + 0.99 + ROUND((MOD(x, 1000) + 0.99) * 0.15, 2) "
+                + "FROM SYSTEM_RANGE(1, ?)", INVOICE_COUNT);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopApplication() {
+        context.close();
+    }
+
+    /**
+     * Sum the persisted invoice totals with a GROUP BY query
+     */
+    @Benchmark
+    public List<InvoiceSummary> summarizeInDatabase() {
+        return invoiceRepository.summarize(new InvoiceFilter(), period, true);
+    }
+
+    /**
+     * Load every invoice and sum its totals in Java
+     */
+    @Benchmark
+    public Map<String, BigDecimal> summarizeByLoading() {
+        Map<String, BigDecimal> totals = new HashMap<>();
+        Calendar calendar = Calendar.getInstance();
+        readOnlyTransaction.execute(status -> {
+            invoiceRepository.forEach(500, invoice -> {
+                calendar.setTime(invoice.getInvoiceDate());
+                String key = invoice.getClient() + "/" + calendar.get(Calendar.YEAR);
+                if (period != InvoiceSummary.Period.YEAR) {
+                    key += "/" + calendar.get(Calendar.MONTH);
+                }
+                if (period == InvoiceSummary.Period.DAY) {
+                    key += "/" + calendar.get(Calendar.DAY_OF_MONTH);
+                }
+                totals.merge(key, invoice.getTotal(), BigDecimal::add);
+            });
+            return null;
+        });
+        return totals;
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures reading and maintaining the invoice totals
+ *
+ * @author William Gadney
+ */
+// JMH annotations
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvoiceTotalsBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    private int lineItemCount;
+
+    private Invoice invoice;
+
+    private InvoiceLineItem lineItem;
+
+    private long quantity;
+
+    @Setup
+    public void setUp() {
+        invoice = JasperReportsInvoiceFactory.getInvoice(lineItemCount);
+        lineItem = invoice.getLineItems().get(lineItemCount - 1);
+    }
+
+    /**
+     * Read the totals the way the JSON views and the invoice report do
+     */
+    @Benchmark
+    public void readTotals(Blackhole blackhole) {
+        blackhole.consume(invoice.getSubTotal());
+        blackhole.consume(invoice.getVat());
+        blackhole.consume(invoice.getTotal());
+    }
+
+    /**
+     * Recalculate the totals from all the line items, as done before an
+     * invoice is saved
+     */
+    @Benchmark
+    public BigDecimal calculateTotals() {
+        invoice.calculateTotals();
+        return invoice.getTotal();
+    }
+
+    /**
+     * Change the quantity of the last line item, updating the totals
+     * incrementally
+     */
+    @Benchmark
+    public BigDecimal changeLineItem() {
+        lineItem.setQuantity(++quantity % 10 + 1);
+        return invoice.getTotal();
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice;
+
+import java.io.IOException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.keycloak.KeycloakSecurityContext;
+import org.keycloak.adapters.springsecurity.filter.KeycloakAuthenticationProcessingFilter;
+import org.keycloak.adapters.springsecurity.token.KeycloakAuthenticationToken;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+
+/**
+ * Authenticates bearer tokens with the Keycloak adapter, reusing the
+ * authentication of a token that was authenticated before.
+ *
+ * @author William Gadney
+ */
+public class CachingKeycloakAuthenticationProcessingFilter extends KeycloakAuthenticationProcessingFilter {
+
+    private static final String BEARER = "Bearer ";
+
+    private final KeycloakTokenCache tokenCache;
+
+    public CachingKeycloakAuthenticationProcessingFilter(AuthenticationManager authenticationManager, KeycloakTokenCache tokenCache) {
+        super(authenticationManager);
+        this.tokenCache = tokenCache;
+    }
+
+    @Override
+    public Authentication attemptAuthentication(HttpServletRequest request, HttpServletResponse response)
+            throws AuthenticationException, IOException, ServletException {
+        String token = getBearerToken(request);
+        if (token != null) {
+            KeycloakAuthenticationToken cached = tokenCache.get(token);
+            if (cached != null) {
+                // The Keycloak adapter makes the security context available as a request attribute
+                request.setAttribute(KeycloakSecurityContext.class.getName(),
+                        cached.getAccount().getKeycloakSecurityContext());
+                return cached;
+            }
+        }
+        Authentication authentication = super.attemptAuthentication(request, response);
+        if (token != null && authentication instanceof KeycloakAuthenticationToken && authentication.isAuthenticated()) {
+            tokenCache.put(token, (KeycloakAuthenticationToken) authentication);
+        }
+        return authentication;
+    }
+
+    private static String getBearerToken(HttpServletRequest request) {
+        String authorization = request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (authorization == null || !authorization.regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+            return null;
+        }
+        String token = authorization.substring(BEARER.length()).trim();
+        return token.isEmpty() ? null : token;
+    }
+
+}
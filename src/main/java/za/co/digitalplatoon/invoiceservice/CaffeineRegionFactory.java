@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice;
+
+import com.github.benmanes.caffeine.jcache.configuration.CaffeineConfiguration;
+import java.util.OptionalLong;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.cache.Cache;
+import org.hibernate.cache.jcache.JCacheRegionFactory;
+import org.hibernate.cache.spi.CacheDataDescription;
+import org.hibernate.cache.spi.UpdateTimestampsCache;
+
+/**
+ * A Hibernate second level cache region factory that creates bounded Caffeine
+ * caches.
+ * <p>
+ * The maximum number of entries and the time entries are kept in each entity,
+ * collection and query cache region are configured with the
+ * invoice.cache.maximum-size and invoice.cache.time-to-live Hibernate
+ * properties. The update timestamps region is never bounded, because the
+ * query cache relies on it to find out whether cached query results are stale.
+ *
+ * @author William Gadney
+ */
+public class CaffeineRegionFactory extends JCacheRegionFactory {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String MAXIMUM_SIZE = "invoice.cache.maximum-size";
+    public static final String TIME_TO_LIVE = "invoice.cache.time-to-live";
+
+    @Override
+    protected Cache<Object, Object> createCache(String regionName, Properties properties, CacheDataDescription metadata) {
+        CaffeineConfiguration<Object, Object> configuration = new CaffeineConfiguration<>();
+        // Hibernate only caches immutable disassembled state, so the entries
+        // do not have to be copied on every read and write
+        configuration.setStoreByValue(false);
+        if (!regionName.endsWith(UpdateTimestampsCache.REGION_NAME)) {
+            configuration.setMaximumSize(OptionalLong.of(
+                    Long.parseLong(properties.getProperty(MAXIMUM_SIZE, "10000"))));
+            configuration.setExpireAfterWrite(OptionalLong.of(TimeUnit.MILLISECONDS.toNanos(
+                    Long.parseLong(properties.getProperty(TIME_TO_LIVE, "600000")))));
+        }
+        return getCacheManager().createCache(regionName, configuration);
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice;
+
+import java.security.PublicKey;
+import java.util.Collections;
+import java.util.Map;
+import java.util.logging.Level;
+import lombok.extern.java.Log;
+import org.apache.http.client.methods.HttpGet;
+import org.keycloak.adapters.HttpAdapterUtils;
+import org.keycloak.adapters.HttpClientAdapterException;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.rotation.JWKPublicKeyLocator;
+import org.keycloak.adapters.rotation.PublicKeyLocator;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.jose.jwk.JWK;
+import org.keycloak.util.JWKSUtils;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Locates the public keys that verify the signatures of bearer tokens from the
+ * keys of the Keycloak realm, which are kept in memory and refreshed in the
+ * background.
+ * <p>
+ * The Keycloak adapter fetches the realm keys on the request thread when its
+ * cached keys expire. Here a token is always verified against the keys in
+ * memory, and the keys are only fetched on a request thread when a token is
+ * signed with a key that is not known yet, because the realm keys were
+ * rotated. Those fetches are limited by the min-time-between-jwks-requests of
+ * the Keycloak deployment.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Component
+// Lombok annotations
+@Log
+public class KeycloakRealmKeys implements PublicKeyLocator {
+
+    private volatile Map<String, PublicKey> keys = Collections.emptyMap();
+
+    private volatile KeycloakDeployment deployment;
+
+    private volatile long lastRequestTime;
+
+    /**
+     * Locate the keys of a Keycloak deployment that fetches the realm keys,
+     * rather than the deployment's own locator. Deployments configured with a
+     * fixed realm public key are left unchanged.
+     *
+     * @param deployment The Keycloak deployment
+     */
+    public void locateKeysOf(KeycloakDeployment deployment) {
+        if (deployment.getPublicKeyLocator() instanceof JWKPublicKeyLocator) {
+            this.deployment = deployment;
+            deployment.setPublicKeyLocator(this);
+        }
+    }
+
+    @Override
+    public PublicKey getPublicKey(String kid, KeycloakDeployment deployment) {
+        PublicKey key = find(kid);
+        if (key == null) {
+            synchronized (this) {
+                key = find(kid);
+                long minTimeBetweenRequests = deployment.getMinTimeBetweenJwksRequests() * 1000L;
+                if (key == null && System.currentTimeMillis() - lastRequestTime >= minTimeBetweenRequests) {
+                    refresh(deployment);
+                    key = find(kid);
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Forget the realm keys, so that they are fetched again when the next token
+     * is verified
+     *
+     * @param deployment The Keycloak deployment
+     */
+    public void reset(KeycloakDeployment deployment) {
+        synchronized (this) {
+            keys = Collections.emptyMap();
+            lastRequestTime = 0;
+        }
+    }
+
+    /**
+     * Fetch the realm keys of the deployment, keeping the current keys if they
+     * cannot be fetched
+     */
+    @Scheduled(fixedDelayString = "${invoice.security.realm-keys.refresh-interval:300000}")
+    public void refreshKeys() {
+        KeycloakDeployment current = deployment;
+        if (current != null) {
+            synchronized (this) {
+                refresh(current);
+            }
+        }
+    }
+
+    private PublicKey find(String kid) {
+        Map<String, PublicKey> current = keys;
+        // A token without a key ID can only be verified by a realm with a single key
+        if (kid == null) {
+            return current.size() == 1 ? current.values().iterator().next() : null;
+        }
+        return current.get(kid);
+    }
+
+    private void refresh(KeycloakDeployment deployment) {
+        lastRequestTime = System.currentTimeMillis();
+        try {
+            JSONWebKeySet jwks = HttpAdapterUtils.sendJsonHttpRequest(
+                    deployment, new HttpGet(deployment.getJwksUrl()), JSONWebKeySet.class);
+            keys = Collections.unmodifiableMap(JWKSUtils.getKeysForUse(jwks, JWK.Use.SIG));
+        } catch (HttpClientAdapterException | RuntimeException ex) {
+            log.log(Level.WARNING, "Unable to fetch the keys of realm " + deployment.getRealm(), ex);
+        }
+    }
+
+}
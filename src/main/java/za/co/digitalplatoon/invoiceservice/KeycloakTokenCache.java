@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import java.util.concurrent.TimeUnit;
+import org.keycloak.adapters.springsecurity.token.KeycloakAuthenticationToken;
+import org.keycloak.representations.AccessToken;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * A bounded cache of the authentications of bearer tokens, keyed on the token.
+ * <p>
+ * An authentication holds the verified access token and the authorities mapped
+ * from its roles, so a client that sends the same token again is authenticated
+ * without verifying the token signature or mapping its roles again. An
+ * authentication is kept until its token expires, or for at most the time to
+ * live.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Component
+public class KeycloakTokenCache {
+
+    private final Cache<String, KeycloakAuthenticationToken> authentications;
+
+    public KeycloakTokenCache(
+            MeterRegistry meterRegistry,
+            @Value("${invoice.security.token-cache.maximum-size:10000}") long maximumSize,
+            @Value("${invoice.security.token-cache.time-to-live:300000}") long timeToLive) {
+        authentications = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfter(new TokenExpiry(TimeUnit.MILLISECONDS.toNanos(timeToLive)))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, authentications, "keycloak.tokens");
+    }
+
+    /**
+     * Find the cached authentication of a bearer token
+     *
+     * @param token The bearer token
+     * @return The authentication or null if the token is not cached or has
+     * expired
+     */
+    public KeycloakAuthenticationToken get(String token) {
+        return authentications.getIfPresent(token);
+    }
+
+    /**
+     * Cache the authentication of a bearer token
+     *
+     * @param token The bearer token
+     * @param authentication The authentication of the token
+     */
+    public void put(String token, KeycloakAuthenticationToken authentication) {
+        authentications.put(token, authentication);
+    }
+
+    /**
+     * Expires authentications when their access token expires
+     */
+    private static class TokenExpiry implements Expiry<String, KeycloakAuthenticationToken> {
+
+        private final long timeToLive;
+
+        TokenExpiry(long timeToLive) {
+            this.timeToLive = timeToLive;
+        }
+
+        @Override
+        public long expireAfterCreate(String key, KeycloakAuthenticationToken value, long currentTime) {
+            AccessToken token = value.getAccount().getKeycloakSecurityContext().getToken();
+            if (token.getExpiration() == 0) {
+                return timeToLive;
+            }
+            long expiresIn = TimeUnit.SECONDS.toNanos(token.getExpiration())
+                    - TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+            return Math.max(0, Math.min(expiresIn, timeToLive));
+        }
+
+        @Override
+        public long expireAfterUpdate(String key, KeycloakAuthenticationToken value, long currentTime, long currentDuration) {
+            return expireAfterCreate(key, value, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(String key, KeycloakAuthenticationToken value, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jpa.HibernateMetrics;
+import javax.persistence.EntityManagerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Configure the application metrics that are not configured automatically
+ *
+ * @author William Gadney
+ */
+@Configuration
+public class MetricsConfig {
+
+    /**
+     * Publishes the Hibernate statistics, such as the query executions, entity
+     * loads and second level cache hits, as the hibernate.* metrics. The
+     * statistics are only collected when hibernate.generate_statistics is
+     * enabled.
+     * <p>
+     * The statistics are bound here rather than with a MeterBinder bean
+     * because the meter registry is configured while the entity manager
+     * factory is still being created.
+     */
+    @Autowired
+    public void bindEntityManagerFactoryToRegistry(EntityManagerFactory entityManagerFactory, MeterRegistry registry) {
+        HibernateMetrics.monitor(registry, entityManagerFactory, "entityManagerFactory");
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice;
+
+import java.sql.Date;
+import javax.validation.ConstraintValidator;
+import javax.validation.ConstraintValidatorContext;
+import javax.validation.constraints.Past;
+
+/**
+ * Validates @Past on the java.sql.Date values Hibernate loads for date
+ * columns. The built-in validator converts the date with toInstant(), which
+ * java.sql.Date does not support. The validator is registered for @Past in
+ * META-INF/validation/constraints.xml.
+ *
+ * @author William Gadney
+ */
+public class PastSqlDateValidator implements ConstraintValidator<Past, Date> {
+
+    @Override
+    public boolean isValid(Date value, ConstraintValidatorContext context) {
+        return value == null || value.getTime() < context.getClockProvider().getClock().millis();
+    }
+
+}
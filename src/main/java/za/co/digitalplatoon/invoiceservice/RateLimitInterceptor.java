@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice;
+
+import java.security.Principal;
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.keycloak.KeycloakSecurityContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+/**
+ * Limits the requests of each client with a rate limiter, responding with 429
+ * Too Many Requests when a client exceeds its limit.
+ * <p>
+ * Clients are identified by the authenticated user, or by the Keycloak client
+ * the bearer token was issued for, and by the remote address when they are
+ * not authenticated. A request of an asynchronous handler is released when its
+ * asynchronous processing completes.
+ *
+ * @author William Gadney
+ */
+public class RateLimitInterceptor implements AsyncHandlerInterceptor {
+
+    public static final String RATE_LIMIT_LIMIT = "RateLimit-Limit";
+    public static final String RATE_LIMIT_REMAINING = "RateLimit-Remaining";
+    public static final String RATE_LIMIT_RESET = "RateLimit-Reset";
+
+    /**
+     * Identifies the clients whose requests are limited
+     */
+    public enum ClientKey {
+        /**
+         * The authenticated user
+         */
+        USER,
+        /**
+         * The Keycloak client the bearer token was issued for
+         */
+        CLIENT
+    }
+
+    private final RateLimiter rateLimiter;
+
+    private final ClientKey clientKey;
+
+    private final String attribute;
+
+    public RateLimitInterceptor(RateLimiter rateLimiter, ClientKey clientKey) {
+        this.rateLimiter = rateLimiter;
+        this.clientKey = clientKey;
+        this.attribute = RateLimitInterceptor.class.getName() + "." + rateLimiter.getName();
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        // The request was counted when it was first dispatched
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            return true;
+        }
+        RateLimiter.Decision decision = rateLimiter.acquire(getClient(request));
+        response.setHeader(RATE_LIMIT_LIMIT, String.valueOf(rateLimiter.getBurst()));
+        response.setHeader(RATE_LIMIT_REMAINING, String.valueOf(decision.getRemaining()));
+        response.setHeader(RATE_LIMIT_RESET, String.valueOf(decision.getResetSeconds()));
+        if (!decision.isAllowed()) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(decision.getRetryAfterSeconds()));
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            return false;
+        }
+        request.setAttribute(attribute, decision);
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        RateLimiter.Decision decision = (RateLimiter.Decision) request.getAttribute(attribute);
+        if (decision != null) {
+            request.removeAttribute(attribute);
+            decision.release();
+        }
+    }
+
+    private String getClient(HttpServletRequest request) {
+        if (clientKey == ClientKey.CLIENT) {
+            KeycloakSecurityContext context = (KeycloakSecurityContext) request.getAttribute(KeycloakSecurityContext.class.getName());
+            if (context != null && context.getToken().getIssuedFor() != null) {
+                return "client:" + context.getToken().getIssuedFor();
+            }
+        }
+        Principal principal = request.getUserPrincipal();
+        if (principal != null) {
+            return "user:" + principal.getName();
+        }
+        return "address:" + request.getRemoteAddr();
+    }
+
+}
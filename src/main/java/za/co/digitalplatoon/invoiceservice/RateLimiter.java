@@ -0,0 +1,245 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Getter;
+
+/**
+ * Limits the rate and the number of concurrent requests of each client.
+ * <p>
+ * The rate is limited by a token bucket that holds up to the burst size of
+ * requests and is refilled at the rate. The bucket of a client is kept as the
+ * single time at which the bucket will be full again, so that a request is
+ * taken from the bucket with one compare and set rather than a lock. A quota
+ * is pinned while a request is taken from it, and an idle quota is only
+ * evicted when it is not pinned, so that a request is never taken from a
+ * quota that was just evicted.
+ *
+ * @author William Gadney
+ */
+public class RateLimiter {
+
+    @Getter
+    private final String name;
+
+    @Getter
+    private final int burst;
+
+    private final long interval;
+
+    private final int maxConcurrent;
+
+    private final ConcurrentMap<String, Quota> quotas = new ConcurrentHashMap<>();
+
+    private final Counter rateRejections;
+
+    private final Counter concurrencyRejections;
+
+    /**
+     * Create a rate limiter
+     *
+     * @param name The name of the limit, used in the metrics
+     * @param rate The number of requests per second
+     * @param burst The number of requests that may be made at once after a
+     * client has been idle
+     * @param maxConcurrent The number of requests of a client that may run at
+     * the same time, or 0 for no limit
+     * @param meterRegistry The meter registry
+     */
+    public RateLimiter(String name, double rate, int burst, int maxConcurrent, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.burst = burst;
+        this.interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        this.maxConcurrent = maxConcurrent;
+        this.rateRejections = rejections(meterRegistry, name, "rate");
+        this.concurrencyRejections = rejections(meterRegistry, name, "concurrency");
+        Gauge.builder("invoice.rate-limit.clients", quotas, ConcurrentMap::size)
+                .description("The number of clients whose requests are limited")
+                .tag("limit", name)
+                .register(meterRegistry);
+    }
+
+    private static Counter rejections(MeterRegistry meterRegistry, String name, String reason) {
+        return Counter.builder("invoice.rate-limit.rejections")
+                .description("The number of requests rejected because a client exceeded its limit")
+                .tag("limit", name)
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Take a request of a client from its quota. An allowed request must be
+     * released when it completes.
+     *
+     * @param client The client making the request
+     * @return Whether the request is allowed, with the state of the client's
+     * quota
+     */
+    public Decision acquire(String client) {
+        Quota quota = quotas.compute(client, (key, current) -> {
+            Quota pinned = current == null ? new Quota() : current;
+            pinned.pins.incrementAndGet();
+            return pinned;
+        });
+        try {
+            return acquire(quota);
+        } finally {
+            // The quota is no longer idle if the request was taken from it
+            quota.pins.decrementAndGet();
+        }
+    }
+
+    private Decision acquire(Quota quota) {
+        if (maxConcurrent > 0 && !quota.acquireConcurrent(maxConcurrent)) {
+            concurrencyRejections.increment();
+            // The client is asked to retry after the interval between its requests
+            return new Decision(null, 0, 0, interval);
+        }
+        long now = System.nanoTime();
+        long limit = burst * interval;
+        while (true) {
+            long full = quota.full.get();
+            // The nano times are compared by their difference, as they may overflow
+            long next = (full - now > 0 ? full : now) + interval;
+            if (next - now > limit) {
+                quota.releaseConcurrent(maxConcurrent);
+                rateRejections.increment();
+                return new Decision(null, 0, full - now, next - now - limit);
+            }
+            if (quota.full.compareAndSet(full, next)) {
+                return new Decision(quota, (int) ((limit - (next - now)) / interval), next - now, 0);
+            }
+        }
+    }
+
+    /**
+     * Forget the quotas of clients whose buckets are full and that have no
+     * running requests. A quota is checked and removed atomically, so that a
+     * request that is being taken from it keeps it.
+     */
+    public void evictIdle() {
+        long now = System.nanoTime();
+        quotas.forEach((client, quota) -> quotas.computeIfPresent(client,
+                (key, current) -> current.isIdle(now) ? null : current));
+    }
+
+    /**
+     * The quota of a client
+     */
+    private static class Quota {
+
+        /**
+         * The time at which the bucket is full, which is in the past once the
+         * client has been idle long enough
+         */
+        private final AtomicLong full = new AtomicLong(System.nanoTime());
+
+        private final AtomicInteger concurrent = new AtomicInteger();
+
+        /**
+         * The number of requests being taken from the quota
+         */
+        private final AtomicInteger pins = new AtomicInteger();
+
+        boolean isIdle(long now) {
+            return pins.get() == 0 && full.get() - now <= 0 && concurrent.get() == 0;
+        }
+
+        boolean acquireConcurrent(int maxConcurrent) {
+            while (true) {
+                int count = concurrent.get();
+                if (count >= maxConcurrent) {
+                    return false;
+                }
+                if (concurrent.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void releaseConcurrent(int maxConcurrent) {
+            if (maxConcurrent > 0) {
+                concurrent.decrementAndGet();
+            }
+        }
+
+    }
+
+    /**
+     * Whether a request is allowed, with the state of the client's quota
+     */
+    public class Decision {
+
+        private Quota quota;
+
+        @Getter
+        private final int remaining;
+
+        private final long reset;
+
+        private final long retryAfter;
+
+        Decision(Quota quota, int remaining, long reset, long retryAfter) {
+            this.quota = quota;
+            this.remaining = remaining;
+            this.reset = reset;
+            this.retryAfter = retryAfter;
+        }
+
+        public boolean isAllowed() {
+            return retryAfter == 0;
+        }
+
+        /**
+         * @return The seconds until the client's bucket is full again
+         */
+        public long getResetSeconds() {
+            return toSeconds(reset);
+        }
+
+        /**
+         * @return The seconds a rejected client should wait before it retries
+         */
+        public long getRetryAfterSeconds() {
+            return Math.max(1, toSeconds(retryAfter));
+        }
+
+        /**
+         * Release an allowed request when it completes
+         */
+        public void release() {
+            Quota released = quota;
+            quota = null;
+            if (released != null) {
+                released.releaseConcurrent(maxConcurrent);
+            }
+        }
+
+        private long toSeconds(long nanos) {
+            return (Math.max(0, nanos) + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1);
+        }
+
+    }
+
+}
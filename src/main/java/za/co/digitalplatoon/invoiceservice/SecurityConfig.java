@@ -19,8 +19,13 @@ import org.keycloak.adapters.KeycloakConfigResolver;
 import org.keycloak.adapters.springboot.KeycloakSpringBootConfigResolver;
 import org.keycloak.adapters.springsecurity.KeycloakSecurityComponents;
 import org.keycloak.adapters.springsecurity.authentication.KeycloakAuthenticationProvider;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.OIDCHttpFacade;
 import org.keycloak.adapters.springsecurity.config.KeycloakWebSecurityConfigurerAdapter;
+import org.keycloak.adapters.springsecurity.filter.KeycloakAuthenticationProcessingFilter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.autoconfigure.security.servlet.EndpointRequest;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
@@ -28,8 +33,10 @@ import org.springframework.security.config.annotation.authentication.builders.Au
 import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
+import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.core.authority.mapping.SimpleAuthorityMapper;
 import org.springframework.security.core.session.SessionRegistryImpl;
+import org.springframework.security.web.authentication.session.NullAuthenticatedSessionStrategy;
 import org.springframework.security.web.authentication.session.RegisterSessionAuthenticationStrategy;
 import org.springframework.security.web.authentication.session.SessionAuthenticationStrategy;
 
@@ -44,6 +51,15 @@ import org.springframework.security.web.authentication.session.SessionAuthentica
 @ComponentScan(basePackageClasses = KeycloakSecurityComponents.class)
 public class SecurityConfig extends KeycloakWebSecurityConfigurerAdapter {
 
+    @Value("${keycloak.bearer-only:false}")
+    private boolean bearerOnly;
+
+    @Autowired
+    private KeycloakRealmKeys realmKeys;
+
+    @Autowired
+    private KeycloakTokenCache tokenCache;
+
     /**
      * Registers the KeycloakAuthenticationProvider with the authentication
      * manager.
@@ -51,28 +67,62 @@ public class SecurityConfig extends KeycloakWebSecurityConfigurerAdapter {
     @Autowired
     public void configureGlobal(AuthenticationManagerBuilder auth) throws Exception {
         KeycloakAuthenticationProvider keycloakAuthenticationProvider = keycloakAuthenticationProvider();
-        // SimpleAuthorityMapper will insert the ROLE_ prefix and convert the role name to upper case.
+        // SimpleAuthorityMapper will insert the ROLE_ prefix, keeping the case of the role name.
         keycloakAuthenticationProvider.setGrantedAuthoritiesMapper(new SimpleAuthorityMapper());
         auth.authenticationProvider(keycloakAuthenticationProvider);
     }
 
+    /**
+     * Resolves the Keycloak deployment, verifying bearer tokens against the
+     * realm keys kept in memory.
+     */
     @Bean
     public KeycloakConfigResolver keycloakConfigResolver() {
-        return new KeycloakSpringBootConfigResolver();
+        return new KeycloakSpringBootConfigResolver() {
+            @Override
+            public KeycloakDeployment resolve(OIDCHttpFacade.Request request) {
+                KeycloakDeployment deployment = super.resolve(request);
+                realmKeys.locateKeysOf(deployment);
+                return deployment;
+            }
+        };
     }
 
     /**
-     * Defines the session authentication strategy.
+     * Defines the session authentication strategy. Bearer-only requests are
+     * stateless, so their authentications are not registered in a session.
      */
     @Bean
     @Override
     protected SessionAuthenticationStrategy sessionAuthenticationStrategy() {
+        if (bearerOnly) {
+            return new NullAuthenticatedSessionStrategy();
+        }
         return new RegisterSessionAuthenticationStrategy(new SessionRegistryImpl());
     }
 
+    /**
+     * Defines the Keycloak authentication filter, which reuses the
+     * authentications of bearer tokens that were authenticated before.
+     */
+    @Bean
+    @Override
+    protected KeycloakAuthenticationProcessingFilter keycloakAuthenticationProcessingFilter() throws Exception {
+        KeycloakAuthenticationProcessingFilter filter
+                = new CachingKeycloakAuthenticationProcessingFilter(authenticationManagerBean(), tokenCache);
+        filter.setSessionAuthenticationStrategy(sessionAuthenticationStrategy());
+        return filter;
+    }
+
     @Override
     protected void configure(HttpSecurity http) throws Exception {
         http.csrf().disable();
+        if (bearerOnly) {
+            http.sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS);
+        }
+        // The metrics, including the Hibernate statistics, are only published to the monitoring system
+        http.authorizeRequests()
+                .requestMatchers(EndpointRequest.to("metrics", "prometheus")).hasRole("view-metrics");
         http.headers().frameOptions().disable(); // Required for /h2-console
     }
 
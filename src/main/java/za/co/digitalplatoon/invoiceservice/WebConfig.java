@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Configure Spring MVC
+ *
+ * @author William Gadney
+ */
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    @Value("${invoice.async.pool-size:8}")
+    private int asyncPoolSize;
+
+    @Value("${invoice.async.queue-capacity:100}")
+    private int asyncQueueCapacity;
+
+    @Value("${invoice.async.timeout:600000}")
+    private long asyncTimeout;
+
+    @Value("${invoice.rate-limit.client-key:user}")
+    private String rateLimitClientKey;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private Jackson2ObjectMapperBuilder objectMapperBuilder;
+
+    private final List<RateLimiter> rateLimiters = new ArrayList<>();
+
+    /**
+     * Defines the bounded executor that writes streaming responses, instead of
+     * the default executor that starts a new thread for every response.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor mvcAsyncExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("mvc-async-");
+        executor.setCorePoolSize(asyncPoolSize);
+        executor.setMaxPoolSize(asyncPoolSize);
+        executor.setQueueCapacity(asyncQueueCapacity);
+        return executor;
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(mvcAsyncExecutor());
+        configurer.setDefaultTimeout(asyncTimeout);
+    }
+
+    /**
+     * Defines the Smile binary representation of the JSON responses, which is
+     * selected with the Accept header. It replaces the default Smile converter,
+     * so that it is written with the same Jackson settings and views as the
+     * JSON responses.
+     */
+    @Bean
+    public MappingJackson2SmileHttpMessageConverter smileHttpMessageConverter() {
+        return new MappingJackson2SmileHttpMessageConverter(objectMapper(new SmileFactory()));
+    }
+
+    /**
+     * Defines the CBOR binary representation of the JSON responses, replacing
+     * the default CBOR converter like the Smile representation.
+     */
+    @Bean
+    public MappingJackson2CborHttpMessageConverter cborHttpMessageConverter() {
+        return new MappingJackson2CborHttpMessageConverter(objectMapper(new CBORFactory()));
+    }
+
+    private ObjectMapper objectMapper(JsonFactory factory) {
+        ObjectMapper objectMapper = new ObjectMapper(factory);
+        // Configure the object mapper without changing the shared builder
+        objectMapperBuilder.configure(objectMapper);
+        return objectMapper;
+    }
+
+    /**
+     * Limits the requests of each client, with strict limits on the
+     * expensive PDF and export endpoints and lenient limits on the JSON
+     * endpoints.
+     */
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        String[] pdfPaths = {"/invoices/*/pdf", "/invoices/render-jobs/**"};
+        String[] exportPaths = {"/invoices/export", "/invoices/*/export"};
+        addRateLimit(registry, "pdf", 1, 10, 2, pdfPaths);
+        addRateLimit(registry, "export", 0.2, 5, 1, exportPaths);
+        InterceptorRegistration json = addRateLimit(registry, "json", 50, 200, 0, "/invoices/**");
+        if (json != null) {
+            json.excludePathPatterns(pdfPaths).excludePathPatterns(exportPaths);
+        }
+    }
+
+    /**
+     * Add a rate limit configured with the invoice.rate-limit.{name}.rate,
+     * burst and max-concurrent properties. The limit is disabled when its
+     * rate is 0.
+     */
+    private InterceptorRegistration addRateLimit(InterceptorRegistry registry, String name,
+            double defaultRate, int defaultBurst, int defaultMaxConcurrent, String... paths) {
+        String prefix = "invoice.rate-limit." + name + ".";
+        double rate = environment.getProperty(prefix + "rate", Double.class, defaultRate);
+        if (rate <= 0) {
+            return null;
+        }
+        RateLimiter rateLimiter = new RateLimiter(name, rate,
+                environment.getProperty(prefix + "burst", Integer.class, defaultBurst),
+                environment.getProperty(prefix + "max-concurrent", Integer.class, defaultMaxConcurrent),
+                meterRegistry);
+        rateLimiters.add(rateLimiter);
+        RateLimitInterceptor.ClientKey clientKey = RateLimitInterceptor.ClientKey.valueOf(rateLimitClientKey.toUpperCase());
+        return registry.addInterceptor(new RateLimitInterceptor(rateLimiter, clientKey)).addPathPatterns(paths);
+    }
+
+    /**
+     * Forget the quotas of idle clients
+     */
+    @Scheduled(fixedDelayString = "${invoice.rate-limit.eviction-interval:60000}")
+    public void evictIdleRateLimits() {
+        rateLimiters.forEach(RateLimiter::evictIdle);
+    }
+
+}
@@ -16,6 +16,7 @@
 package za.co.digitalplatoon.invoiceservice.invoice;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonManagedReference;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonPropertyOrder;
@@ -27,15 +28,21 @@ import java.math.RoundingMode;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import javax.persistence.Cacheable;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.NamedQueries;
 import javax.persistence.NamedQuery;
 import javax.persistence.OneToMany;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 import javax.persistence.Version;
@@ -43,9 +50,15 @@ import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Past;
 import javax.validation.constraints.Size;
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Setter;
 import lombok.ToString;
+import org.hibernate.annotations.BatchSize;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.DynamicUpdate;
 
 /**
  * An invoice entity class
@@ -54,9 +67,35 @@ import lombok.ToString;
  */
 // JPA annotations
 @Entity
+@Cacheable
+@Table(indexes = {
+    // Supports the invoice totals grouped by client and invoice date
+    @Index(name = "IDX_INVOICE_CLIENT_DATE", columnList = "client, invoiceDate")
+    ,@Index(name = "IDX_INVOICE_DATE", columnList = "invoiceDate")
+    // Supports the pages of invoices ordered by client, and client prefix searches
+    ,@Index(name = "IDX_INVOICE_CLIENT_ID", columnList = "client, INVOICE_ID")
+    ,@Index(name = "IDX_INVOICE_CREATED_BY", columnList = "createdBy, invoiceDate")
+    // Supports the change feed ordered by change sequence
+    ,@Index(name = "IDX_INVOICE_CHANGE_SEQUENCE", columnList = "CHANGE_SEQUENCE, INVOICE_ID")
+})
 @NamedQueries({
-    @NamedQuery(name = "Invoice.FindAllInvoices", query = "SELECT i FROM Invoice AS i ORDER BY i.client")
+    @NamedQuery(name = "Invoice.FindAllInvoices", query = "SELECT i FROM Invoice AS i ORDER BY i.client, i.id")
+    ,@NamedQuery(name = "Invoice.FindInvoiceWithLineItems", query = "SELECT DISTINCT i FROM Invoice AS i "
+            + "LEFT JOIN FETCH i.lineItems "
+            + "WHERE i.id = :id")
+    ,@NamedQuery(name = "Invoice.FindInvoiceVersion", query = "SELECT i.version FROM Invoice AS i WHERE i.id = :id")
+    ,@NamedQuery(name = "Invoice.FindChanges", query = "SELECT i FROM Invoice AS i "
+            + "WHERE i.changeSequence IS NOT NULL "
+            + "ORDER BY i.changeSequence, i.id")
+    ,@NamedQuery(name = "Invoice.FindChangesAfter", query = "SELECT i FROM Invoice AS i "
+            + "WHERE i.changeSequence > :changeSequence OR (i.changeSequence = :changeSequence AND i.id > :id) "
+            + "ORDER BY i.changeSequence, i.id")
+    ,@NamedQuery(name = "Invoice.FindLastChangeSequence", query = "SELECT MAX(i.changeSequence) FROM Invoice AS i")
 })
+// Hibernate annotations
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+// Only update the changed columns
+@DynamicUpdate
 // Jackson annotations
 @JsonPropertyOrder({
     "id",
@@ -68,7 +107,8 @@ import lombok.ToString;
     "lineItems",
     "subTotal",
     "vat",
-    "total"
+    "total",
+    "lastModified"
 })
 // Lombok annotations
 @Data
@@ -80,7 +120,8 @@ public class Invoice implements Serializable {
 
     // JPA annotations
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "INVOICE_SEQ")
+    @SequenceGenerator(name = "INVOICE_SEQ", sequenceName = "INVOICE_SEQ", allocationSize = 50)
     @Column(name = "INVOICE_ID")
     // Jackson annotations
     @JsonView({
@@ -191,6 +232,9 @@ public class Invoice implements Serializable {
     
     // JPA annotations
     @OneToMany(mappedBy = "invoice", cascade = CascadeType.ALL, orphanRemoval = true)
+    // Hibernate annotations
+    @BatchSize(size = 50)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     // Bean validation annotations
     @NotNull(message = "{Invoice.lineItems.NotNull}")
     @Size(min = 1, message = "{Invoice.lineItems.Size}")
@@ -223,13 +267,9 @@ public class Invoice implements Serializable {
             readOnly = true,
             position = 8
     )
-    public BigDecimal getSubTotal() {
-        BigDecimal subTotal = new BigDecimal(0);
-        for (InvoiceLineItem lineItem : lineItems) {
-            subTotal = subTotal.add(lineItem.getLineItemTotal());
-        }
-        return subTotal;
-    }
+    // Lombok annotations
+    @Setter(AccessLevel.NONE)
+    private BigDecimal subTotal = BigDecimal.ZERO;
 
     // Jackson annotations
     @JsonProperty(required = true)
@@ -243,11 +283,9 @@ public class Invoice implements Serializable {
             readOnly = true,
             position = 9
     )
-    public BigDecimal getVat() {
-        BigDecimal subTotal = getSubTotal();
-        BigDecimal vat = new BigDecimal(vatRate).divide(new BigDecimal(100));
-        return subTotal.multiply(vat).setScale(2, RoundingMode.HALF_UP);
-    }
+    // Lombok annotations
+    @Setter(AccessLevel.NONE)
+    private BigDecimal vat = BigDecimal.ZERO;
 
     // Jackson annotations
     @JsonProperty(required = true)
@@ -261,8 +299,144 @@ public class Invoice implements Serializable {
             readOnly = true,
             position = 10
     )
-    public BigDecimal getTotal() {
-        return getSubTotal().add(getVat()).setScale(2, RoundingMode.HALF_UP);
+    // Lombok annotations
+    @Setter(AccessLevel.NONE)
+    private BigDecimal total = BigDecimal.ZERO;
+
+    // JPA annotations
+    @Temporal(TemporalType.TIMESTAMP)
+    // Jackson annotations
+    @JsonView({
+        View.All.class
+    })
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The time the invoice was added or last changed.",
+            example = "2018-04-17T10:15:30.000+0200",
+            readOnly = true,
+            position = 11
+    )
+    // Lombok annotations
+    @Setter(AccessLevel.NONE)
+    private Date lastModified;
+
+    /**
+     * The position of the last change of the invoice in commit order, which
+     * is written by {@link InvoiceChangeSequence} when the change commits.
+     * It is only read from the change feed queries, because the loaded and
+     * cached invoices are not updated.
+     */
+    // JPA annotations
+    @Column(name = "CHANGE_SEQUENCE", insertable = false, updatable = false)
+    // Jackson annotations
+    @JsonIgnore
+    // Lombok annotations
+    @Setter(AccessLevel.NONE)
+    private Long changeSequence;
+
+    public void setVatRate(Long vatRate) {
+        this.vatRate = vatRate;
+        calculateVatAndTotal();
+    }
+
+    public void setLineItems(List<InvoiceLineItem> lineItems) {
+        this.lineItems = lineItems;
+        calculateTotals();
+    }
+
+    /**
+     * Add a line item to the invoice and update the invoice totals
+     *
+     * @param lineItem The line item
+     */
+    public void addLineItem(InvoiceLineItem lineItem) {
+        lineItem.setInvoice(this);
+        lineItems.add(lineItem);
+        addToSubTotal(lineItem.getLineItemTotal());
+    }
+
+    /**
+     * Remove a line item from the invoice and update the invoice totals
+     *
+     * @param lineItem The line item
+     */
+    public void removeLineItem(InvoiceLineItem lineItem) {
+        if (lineItems.removeIf(item -> item == lineItem)) {
+            lineItem.setInvoice(null);
+            subtractFromSubTotal(lineItem.getLineItemTotal());
+        }
+    }
+
+    /**
+     * Update the invoice totals after the total of one of its line items changed
+     *
+     * @param lineItem The line item
+     * @param previousLineItemTotal The line item total before the change
+     */
+    void lineItemTotalChanged(InvoiceLineItem lineItem, BigDecimal previousLineItemTotal) {
+        // Line items that are not on the invoice yet are counted when they are added
+        if (lineItems.stream().anyMatch(item -> item == lineItem)) {
+            subtractFromSubTotal(previousLineItemTotal);
+            addToSubTotal(lineItem.getLineItemTotal());
+        }
+    }
+
+    // JPA annotations
+    @PrePersist
+    void prePersist() {
+        calculateTotals();
+        lastModified = new Date();
+    }
+
+    // JPA annotations
+    @PreUpdate
+    void preUpdate() {
+        lastModified = new Date();
+    }
+
+    /**
+     * Mark the invoice as modified, so that its version and last modified time
+     * are updated even if only its line items changed
+     */
+    void modified() {
+        lastModified = new Date();
+    }
+
+    /**
+     * Calculate the invoice totals from all the line items. The totals are
+     * otherwise updated incrementally as line items are added and changed.
+     */
+    void calculateTotals() {
+        subTotal = BigDecimal.ZERO;
+        if (lineItems != null) {
+            for (InvoiceLineItem lineItem : lineItems) {
+                addToSubTotal(lineItem.getLineItemTotal());
+            }
+        }
+        calculateVatAndTotal();
+    }
+
+    private void addToSubTotal(BigDecimal amount) {
+        if (amount != null) {
+            subTotal = subTotal.add(amount);
+            calculateVatAndTotal();
+        }
+    }
+
+    private void subtractFromSubTotal(BigDecimal amount) {
+        if (amount != null) {
+            subTotal = subTotal.subtract(amount);
+            calculateVatAndTotal();
+        }
+    }
+
+    private void calculateVatAndTotal() {
+        if (vatRate == null) {
+            vat = BigDecimal.ZERO;
+        } else {
+            vat = subTotal.multiply(BigDecimal.valueOf(vatRate, 2)).setScale(2, RoundingMode.HALF_UP);
+        }
+        total = subTotal.add(vat).setScale(2, RoundingMode.HALF_UP);
     }
 
     public interface View {
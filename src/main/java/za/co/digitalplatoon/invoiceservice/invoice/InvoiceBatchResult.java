@@ -0,0 +1,156 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import io.swagger.annotations.ApiModelProperty;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * The outcome of adding a batch of invoices
+ *
+ * @author William Gadney
+ */
+// Jackson annotations
+@JsonPropertyOrder({
+    "added",
+    "failed",
+    "error",
+    "items"
+})
+// Lombok annotations
+@Getter
+public class InvoiceBatchResult {
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The number of invoices that were added.",
+            example = "998",
+            readOnly = true,
+            position = 1
+    )
+    private int added;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The number of invoices that could not be added.",
+            example = "2",
+            readOnly = true,
+            position = 2
+    )
+    private int failed;
+
+    // Jackson annotations
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The reason why the rest of the batch could not be read, if the batch is incomplete.",
+            example = "The batch is not well formed JSON after 1000 invoices: Unexpected end-of-input",
+            readOnly = true,
+            position = 3
+    )
+    private String error;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The outcome for each invoice in the order the invoices were received.",
+            readOnly = true,
+            position = 4
+    )
+    private final List<Item> items = new ArrayList<>();
+
+    void addAdded(int index, Long invoiceId) {
+        added++;
+        items.add(new Item(index, invoiceId, null));
+    }
+
+    void addFailed(int index, List<String> errors) {
+        failed++;
+        items.add(new Item(index, null, errors));
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    void sortItems() {
+        items.sort(Comparator.comparingInt(Item::getIndex));
+    }
+
+    /**
+     * Copy the outcome of the invoices read so far
+     */
+    InvoiceBatchResult copy() {
+        InvoiceBatchResult copy = new InvoiceBatchResult();
+        copy.added = added;
+        copy.failed = failed;
+        copy.error = error;
+        copy.items.addAll(items);
+        return copy;
+    }
+
+    /**
+     * The outcome of adding a single invoice of a batch
+     */
+    // Jackson annotations
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    @JsonPropertyOrder({
+        "index",
+        "id",
+        "errors"
+    })
+    // Lombok annotations
+    @Getter
+    public static class Item {
+
+        // Swagger annotations
+        @ApiModelProperty(
+                value = "The zero based position of the invoice in the batch.",
+                example = "0",
+                readOnly = true,
+                position = 1
+        )
+        private final int index;
+
+        // Swagger annotations
+        @ApiModelProperty(
+                value = "The unique ID of the added invoice.",
+                example = "1",
+                readOnly = true,
+                position = 2
+        )
+        private final Long id;
+
+        // Swagger annotations
+        @ApiModelProperty(
+                value = "The reasons why the invoice could not be added.",
+                readOnly = true,
+                position = 3
+        )
+        private final List<String> errors;
+
+        Item(int index, Long id, List<String> errors) {
+            this.index = index;
+            this.id = id;
+            this.errors = errors;
+        }
+    }
+
+}
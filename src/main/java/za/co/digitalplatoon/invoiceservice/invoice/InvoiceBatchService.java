@@ -0,0 +1,192 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * A service that adds batches of invoices.
+ * <p>
+ * The invoices are read one at a time from a JSON array or a newline
+ * delimited JSON stream, validated individually and saved in chunks, each in
+ * its own transaction, so that Hibernate can batch the inserts of a chunk and
+ * memory use does not grow with the size of the batch. The saved invoices are
+ * cleared from the persistence context after each chunk, because the
+ * persistence context of the request outlives the chunk transactions. The
+ * progress of the batch can be recorded in the transaction of each chunk, so
+ * that a batch that fails part way can be answered without adding the saved
+ * chunks again. The invoices of a chunk are added to the PDF outbox in the
+ * transaction of the chunk, like the invoices added one at a time.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Service
+// Lombok annotations
+@Log
+public class InvoiceBatchService {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    private final ObjectReader reader;
+
+    private final Validator validator;
+
+    private final InvoicePdfOutbox pdfOutbox;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final int chunkSize;
+
+    public InvoiceBatchService(
+            ObjectMapper objectMapper,
+            Validator validator,
+            InvoicePdfOutbox pdfOutbox,
+            PlatformTransactionManager transactionManager,
+            @Value("${invoice.batch.chunk-size:100}") int chunkSize) {
+        this.reader = objectMapper.readerWithView(Invoice.View.Add.class).forType(Invoice.class);
+        this.validator = validator;
+        this.pdfOutbox = pdfOutbox;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Add a batch of invoices
+     *
+     * @param body A JSON array of invoices or newline delimited JSON invoices
+     * @param createdBy The logged in user adding the invoices or null
+     * @param progress Receives the outcome for the invoices read so far in the
+     * transaction of each chunk, with an error saying the batch is incomplete,
+     * or null
+     * @return The outcome for each invoice. If the body is not well formed
+     * JSON the result has an error, and the outcome for the invoices read
+     * before the malformed JSON.
+     * @throws IOException If the body could not be read
+     */
+    public InvoiceBatchResult add(InputStream body, String createdBy, Consumer<InvoiceBatchResult> progress) throws IOException {
+        InvoiceBatchResult result = new InvoiceBatchResult();
+        List<Invoice> chunk = new ArrayList<>(chunkSize);
+        List<Integer> chunkIndexes = new ArrayList<>(chunkSize);
+        int index = 0;
+        try (MappingIterator<Invoice> invoices = reader.readValues(body)) {
+            while (invoices.hasNextValue()) {
+                Invoice invoice;
+                try {
+                    invoice = invoices.nextValue();
+                } catch (JsonMappingException ex) {
+                    // The iterator skips the rest of the invalid invoice
+                    result.addFailed(index++, Collections.singletonList(ex.getOriginalMessage()));
+                    continue;
+                }
+                List<String> errors = validate(invoice);
+                if (!errors.isEmpty()) {
+                    result.addFailed(index++, errors);
+                    continue;
+                }
+                invoice.setCreatedBy(createdBy);
+                chunk.add(invoice);
+                chunkIndexes.add(index++);
+                if (chunk.size() == chunkSize) {
+                    save(chunk, chunkIndexes, result, progress);
+                }
+            }
+        } catch (JsonParseException ex) {
+            // The invoices after the malformed JSON cannot be read
+            log.fine(ex.getMessage());
+            result.setError("The batch is not well formed JSON after " + index + " invoices: " + ex.getOriginalMessage());
+        } finally {
+            save(chunk, chunkIndexes, result, progress);
+        }
+        result.sortItems();
+        return result;
+    }
+
+    private List<String> validate(Invoice invoice) {
+        Set<ConstraintViolation<Invoice>> violations = validator.validate(invoice);
+        return violations.stream()
+                .map(violation -> violation.getPropertyPath() + ": " + violation.getMessage())
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Save a chunk of invoices in a single transaction and clear the chunk
+     */
+    private void save(List<Invoice> chunk, List<Integer> chunkIndexes, InvoiceBatchResult result,
+            Consumer<InvoiceBatchResult> progress) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        try {
+            transactionTemplate.execute(status -> {
+                for (Invoice invoice : chunk) {
+                    em.persist(invoice);
+                    // Pre-render the PDF file once the chunk is committed
+                    pdfOutbox.add(invoice);
+                }
+                if (progress != null) {
+                    // The result itself is only updated once the chunk is committed
+                    InvoiceBatchResult saved = result.copy();
+                    for (int i = 0; i < chunk.size(); i++) {
+                        saved.addAdded(chunkIndexes.get(i), chunk.get(i).getId());
+                    }
+                    saved.sortItems();
+                    saved.setError("The batch did not complete, the outcome for the first "
+                            + (saved.getAdded() + saved.getFailed()) + " invoices was saved");
+                    progress.accept(saved);
+                }
+                return null;
+            });
+            for (int i = 0; i < chunk.size(); i++) {
+                result.addAdded(chunkIndexes.get(i), chunk.get(i).getId());
+            }
+        } catch (RuntimeException ex) {
+            log.log(Level.WARNING, "Unable to save a chunk of " + chunk.size() + " invoices", ex);
+            List<String> errors = Collections.singletonList("The invoice could not be saved");
+            chunkIndexes.forEach(chunkIndex -> result.addFailed(chunkIndex, errors));
+        } finally {
+            // Do not dirty check the saved invoices again when the next chunk is flushed
+            em.clear();
+        }
+        chunk.clear();
+        chunkIndexes.clear();
+    }
+
+}
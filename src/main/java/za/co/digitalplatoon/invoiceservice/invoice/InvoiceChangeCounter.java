@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.io.Serializable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import lombok.Data;
+
+/**
+ * An invoice change counter entity class. The single counter holds the last
+ * change sequence assigned by {@link InvoiceChangeSequence}.
+ *
+ * @author William Gadney
+ */
+// JPA annotations
+@Entity
+@Table(name = "INVOICE_CHANGE_COUNTER")
+// Lombok annotations
+@Data
+public class InvoiceChangeCounter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final long COUNTER_ID = 1L;
+
+    // JPA annotations
+    @Id
+    @Column(name = "INVOICE_CHANGE_COUNTER_ID")
+    private Long id;
+
+    // JPA annotations
+    @Column(name = "CHANGE_SEQUENCE", nullable = false)
+    private long changeSequence;
+
+    protected InvoiceChangeCounter() {
+    }
+
+    public InvoiceChangeCounter(Long id) {
+        this.id = id;
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import lombok.Value;
+
+/**
+ * An opaque cursor pointing at the last invoice change returned by the
+ * invoice change feed, which is ordered by change sequence and ID
+ *
+ * @author William Gadney
+ */
+// Lombok annotations
+@Value
+public class InvoiceChangeCursor {
+
+    private final Long changeSequence;
+
+    private final Long id;
+
+    /**
+     * Create a cursor pointing at an invoice change
+     *
+     * @param invoice The last changed invoice of a page
+     * @return The cursor
+     */
+    public static InvoiceChangeCursor of(Invoice invoice) {
+        return new InvoiceChangeCursor(invoice.getChangeSequence(), invoice.getId());
+    }
+
+    /**
+     * Decode a cursor previously returned by {@link #encode()}
+     *
+     * @param value The encoded cursor
+     * @return The cursor
+     * @throws IllegalArgumentException If the value is not a valid cursor
+     */
+    public static InvoiceChangeCursor decode(String value) {
+        String decoded = new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8);
+        int separator = decoded.indexOf(':');
+        if (separator < 1) {
+            throw new IllegalArgumentException("Invalid invoice change cursor " + value);
+        }
+        return new InvoiceChangeCursor(
+                Long.valueOf(decoded.substring(0, separator)),
+                Long.valueOf(decoded.substring(separator + 1))
+        );
+    }
+
+    /**
+     * Encode the cursor as a URL safe string
+     *
+     * @return The encoded cursor
+     */
+    public String encode() {
+        String decoded = changeSequence + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(decoded.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
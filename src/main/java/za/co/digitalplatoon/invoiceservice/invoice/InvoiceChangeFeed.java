@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import javax.annotation.PreDestroy;
+import lombok.extern.java.Log;
+import org.hibernate.Hibernate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * A feed of the invoices added or changed after a cursor, so that downstream
+ * systems can mirror the invoices by fetching only the changes.
+ * <p>
+ * Changes are ordered by the change sequence that {@link InvoiceChangeSequence}
+ * assigns in commit order, so a change that commits after a consumer moved
+ * past the changes committed before it is still returned, however long its
+ * transaction took. Consumers waiting for changes are
+ * checked every poll interval with a single query, which also finds the
+ * changes made through other instances.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Service
+// Lombok annotations
+@Log
+public class InvoiceChangeFeed {
+
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    private final InvoiceRepository invoiceRepository;
+
+    private final TransactionTemplate readOnlyTransaction;
+
+    public InvoiceChangeFeed(
+            InvoiceRepository invoiceRepository,
+            PlatformTransactionManager transactionManager,
+            MeterRegistry meterRegistry) {
+        this.invoiceRepository = invoiceRepository;
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        Gauge.builder("invoice.changes.waiting", waiters, Queue::size)
+                .description("The number of change feed consumers waiting for invoice changes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Find the invoices added or changed after a cursor, waiting for changes
+     * if there are none yet
+     *
+     * @param after The cursor of the last change the consumer has seen, or
+     * null to start with the oldest change
+     * @param limit The maximum number of invoices to return
+     * @param wait The time in milliseconds to wait for changes, or 0 to
+     * return immediately
+     * @return A future that completes with the changed invoices and their line
+     * items ordered by change sequence and ID, or with no invoices if there
+     * were no changes before the wait time passed
+     */
+    public CompletableFuture<List<Invoice>> findChanges(InvoiceChangeCursor after, int limit, long wait) {
+        List<Invoice> changes = find(after, limit);
+        if (!changes.isEmpty() || wait <= 0) {
+            return CompletableFuture.completedFuture(changes);
+        }
+        Waiter waiter = new Waiter(after, limit, System.currentTimeMillis() + wait);
+        waiters.add(waiter);
+        return waiter.future;
+    }
+
+    /**
+     * Complete the waiting consumers for which there are changes or whose wait
+     * time has passed
+     */
+    @Scheduled(fixedDelayString = "${invoice.changes.poll-interval:500}")
+    public void notifyWaiters() {
+        if (waiters.isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Long lastChangeSequence = readOnlyTransaction.execute(status -> invoiceRepository.findLastChangeSequence());
+        Iterator<Waiter> iterator = waiters.iterator();
+        while (iterator.hasNext()) {
+            Waiter waiter = iterator.next();
+            try {
+                if (lastChangeSequence != null
+                        && (waiter.after == null || lastChangeSequence > waiter.after.getChangeSequence())) {
+                    List<Invoice> changes = find(waiter.after, waiter.limit);
+                    if (!changes.isEmpty()) {
+                        iterator.remove();
+                        waiter.future.complete(changes);
+                        continue;
+                    }
+                }
+                if (now >= waiter.deadline) {
+                    iterator.remove();
+                    waiter.future.complete(Collections.emptyList());
+                }
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "Unable to find the invoice changes", ex);
+                iterator.remove();
+                waiter.future.completeExceptionally(ex);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        Waiter waiter;
+        while ((waiter = waiters.poll()) != null) {
+            waiter.future.complete(Collections.emptyList());
+        }
+    }
+
+    private List<Invoice> find(InvoiceChangeCursor after, int limit) {
+        return readOnlyTransaction.execute(status -> {
+            List<Invoice> changes = invoiceRepository.findChanges(after, limit);
+            // Load the line items of the page in batches
+            changes.forEach(invoice -> Hibernate.initialize(invoice.getLineItems()));
+            return changes;
+        });
+    }
+
+    /**
+     * A consumer waiting for changes after a cursor
+     */
+    private static class Waiter {
+
+        private final CompletableFuture<List<Invoice>> future = new CompletableFuture<>();
+
+        private final InvoiceChangeCursor after;
+
+        private final int limit;
+
+        private final long deadline;
+
+        Waiter(InvoiceChangeCursor after, int limit, long deadline) {
+            this.after = after;
+            this.limit = limit;
+            this.deadline = deadline;
+        }
+
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import lombok.extern.java.Log;
+import org.hibernate.action.spi.AfterTransactionCompletionProcess;
+import org.hibernate.action.spi.BeforeTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventSource;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.persister.entity.EntityPersister;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Assigns the change sequence of the invoices added or changed by a
+ * transaction, so that the invoice change feed can be paged in commit order.
+ * <p>
+ * The change sequence is taken from the invoice change counter after the
+ * transaction is flushed, just before it commits. The counter row stays
+ * locked until the transaction commits, so the transactions that change
+ * invoices receive their sequence numbers in the order they commit. A
+ * consumer that has seen a change sequence has therefore seen every committed
+ * change with a lower one, however long the transactions took, and only the
+ * commits of the transactions that change invoices are serialized.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Component
+// Lombok annotations
+@Log
+public class InvoiceChangeSequence implements PostInsertEventListener, PostUpdateEventListener {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String INCREMENT_COUNTER = "UPDATE INVOICE_CHANGE_COUNTER "
+            + "SET CHANGE_SEQUENCE = CHANGE_SEQUENCE + 1 WHERE INVOICE_CHANGE_COUNTER_ID = ?";
+
+    private static final String SELECT_COUNTER = "SELECT CHANGE_SEQUENCE FROM INVOICE_CHANGE_COUNTER "
+            + "WHERE INVOICE_CHANGE_COUNTER_ID = ?";
+
+    private static final String UPDATE_INVOICE = "UPDATE INVOICE SET CHANGE_SEQUENCE = ? WHERE INVOICE_ID = ?";
+
+    @PersistenceContext
+    private transient EntityManager em;
+
+    private final transient EntityManagerFactory emf;
+
+    private final transient TransactionTemplate transactionTemplate;
+
+    private final transient ConcurrentMap<SharedSessionContractImplementor, Changes> changes = new ConcurrentHashMap<>();
+
+    public InvoiceChangeSequence(EntityManagerFactory emf, PlatformTransactionManager transactionManager) {
+        this.emf = emf;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Listen to the invoice changes and create the change counter if it does
+     * not exist yet
+     */
+    @PostConstruct
+    public void register() {
+        EventListenerRegistry registry = emf.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry().getService(EventListenerRegistry.class);
+        registry.appendListeners(EventType.POST_INSERT, this);
+        registry.appendListeners(EventType.POST_UPDATE, this);
+        try {
+            transactionTemplate.execute(status -> {
+                if (em.find(InvoiceChangeCounter.class, InvoiceChangeCounter.COUNTER_ID) == null) {
+                    em.persist(new InvoiceChangeCounter(InvoiceChangeCounter.COUNTER_ID));
+                }
+                return null;
+            });
+        } catch (RuntimeException ex) {
+            // Another instance created the counter at the same time
+            log.log(Level.FINE, "Unable to create the invoice change counter", ex);
+        }
+    }
+
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+        if (event.getEntity() instanceof Invoice) {
+            changed(event.getSession(), (Long) event.getId());
+        }
+    }
+
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+        if (event.getEntity() instanceof Invoice) {
+            changed(event.getSession(), (Long) event.getId());
+        }
+    }
+
+    @Override
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+        return false;
+    }
+
+    /**
+     * Record an invoice change of the current transaction of a session
+     */
+    private void changed(EventSource session, Long invoiceId) {
+        changes.computeIfAbsent(session, key -> {
+            Changes sessionChanges = new Changes();
+            session.getActionQueue().registerProcess((BeforeTransactionCompletionProcess) sessionChanges);
+            session.getActionQueue().registerProcess((AfterTransactionCompletionProcess) sessionChanges);
+            return sessionChanges;
+        }).invoiceIds.add(invoiceId);
+    }
+
+    /**
+     * The invoices changed by the current transaction of a session
+     */
+    private class Changes implements BeforeTransactionCompletionProcess, AfterTransactionCompletionProcess {
+
+        private final Set<Long> invoiceIds = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void doBeforeTransactionCompletion(SessionImplementor session) {
+            session.doWork(connection -> {
+                long changeSequence;
+                // Locks the counter until the transaction commits
+                try (PreparedStatement increment = connection.prepareStatement(INCREMENT_COUNTER)) {
+                    increment.setLong(1, InvoiceChangeCounter.COUNTER_ID);
+                    if (increment.executeUpdate() != 1) {
+                        throw new IllegalStateException("The invoice change counter does not exist");
+                    }
+                }
+                try (PreparedStatement select = connection.prepareStatement(SELECT_COUNTER)) {
+                    select.setLong(1, InvoiceChangeCounter.COUNTER_ID);
+                    try (ResultSet resultSet = select.executeQuery()) {
+                        resultSet.next();
+                        changeSequence = resultSet.getLong(1);
+                    }
+                }
+                try (PreparedStatement update = connection.prepareStatement(UPDATE_INVOICE)) {
+                    for (Long invoiceId : invoiceIds) {
+                        update.setLong(1, changeSequence);
+                        update.setLong(2, invoiceId);
+                        update.addBatch();
+                    }
+                    update.executeBatch();
+                }
+            });
+        }
+
+        @Override
+        public void doAfterTransactionCompletion(boolean success, SharedSessionContractImplementor session) {
+            changes.remove(session, this);
+        }
+
+    }
+
+}
@@ -16,39 +16,54 @@
 package za.co.digitalplatoon.invoiceservice.invoice;
 
 import com.fasterxml.jackson.annotation.JsonView;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiImplicitParam;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
-import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.security.Principal;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 import javax.annotation.security.RolesAllowed;
 import javax.persistence.EntityManager;
+import javax.persistence.OptimisticLockException;
 import javax.persistence.PersistenceContext;
-import javax.persistence.TypedQuery;
+import javax.validation.ConstraintViolationException;
 import javax.validation.Valid;
 import lombok.extern.java.Log;
 import net.sf.jasperreports.engine.JRException;
-import net.sf.jasperreports.engine.JasperExportManager;
-import net.sf.jasperreports.engine.JasperFillManager;
-import net.sf.jasperreports.engine.JasperPrint;
-import net.sf.jasperreports.engine.JasperReport;
-import net.sf.jasperreports.engine.data.JRBeanCollectionDataSource;
-import net.sf.jasperreports.engine.util.JRLoader;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.orm.ObjectOptimisticLockingFailureException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ModelAttribute;
+import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 import springfox.documentation.annotations.ApiIgnore;
 
@@ -59,7 +74,11 @@ import springfox.documentation.annotations.ApiIgnore;
  */
 // Spring annotations
 @RestController
-@RequestMapping(path = "invoices", produces = {MediaType.APPLICATION_JSON_VALUE})
+@RequestMapping(path = "invoices", produces = {
+    MediaType.APPLICATION_JSON_VALUE,
+    InvoiceController.APPLICATION_SMILE_VALUE,
+    InvoiceController.APPLICATION_CBOR_VALUE
+})
 // Security annotations
 @RolesAllowed("view-invoices")
 // Swagger annotations
@@ -69,58 +88,321 @@ import springfox.documentation.annotations.ApiIgnore;
 @Log
 public class InvoiceController {
 
+    public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+    public static final String APPLICATION_SMILE_VALUE = "application/x-jackson-smile";
+
+    public static final String APPLICATION_CBOR_VALUE = "application/cbor";
+
     @PersistenceContext
     private EntityManager em;
 
+    @Autowired
+    private InvoiceRepository invoiceRepository;
+
+    @Autowired
+    private InvoicePdfRenderer pdfRenderer;
+
+    @Autowired
+    private InvoiceLargePdfRenderer largePdfRenderer;
+
+    @Autowired
+    private InvoicePdfCache pdfCache;
+
+    @Autowired
+    private InvoicePdfRenderExecutor renderExecutor;
+
+    @Autowired
+    private InvoicePdfOutbox pdfOutbox;
+
+    @Autowired
+    private InvoiceBatchService batchService;
+
+    @Autowired
+    private InvoiceExporter exporter;
+
+    @Autowired
+    private InvoiceChangeFeed changeFeed;
+
+    @Autowired
+    private InvoiceIdempotencyStore idempotencyStore;
+
+    @Autowired
+    private InvoiceUpdateService updateService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private TransactionTemplate readOnlyTransaction;
+
+    @Value("${invoice.list.default-page-size:100}")
+    private int defaultPageSize;
+
+    @Value("${invoice.list.max-page-size:1000}")
+    private int maxPageSize;
+
+    @Value("${invoice.list.stream-fetch-size:500}")
+    private int streamFetchSize;
+
+    @Value("${invoice.report.streaming-threshold:1000}")
+    private int streamingThreshold;
+
+    @Value("${invoice.report.render.retry-after:5}")
+    private int renderRetryAfter;
+
+    @Value("${invoice.changes.max-wait:30}")
+    private int maxChangesWait;
+
+    @Autowired
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+    }
+
     // Spring annotations
     @PostMapping
-    @Transactional
     // Security annotations
     @RolesAllowed("add-invoice")
     // Jackson annotations
     @JsonView(Invoice.View.All.class)
     // Swagger annotations
     @ApiOperation(value = "Add an invoice",
-            notes = "Add an invoice",
+            notes = "Add an invoice. A request with an Idempotency-Key that was used before "
+            + "receives the response to the first request instead of adding the invoice again, "
+            + "as long as it repeats the request body.",
             code = 201,
             response = Invoice.class
     )
     @ApiResponses(value = {
         @ApiResponse(code = 400, message = "The input data is invalid")
+        ,@ApiResponse(code = 409, message = "A request with the same Idempotency-Key is still running")
+        ,@ApiResponse(code = 422, message = "The Idempotency-Key was used before with a different request body")
     })
-    public ResponseEntity<Invoice> addInvoice(
+    public ResponseEntity<?> addInvoice(
             @RequestBody
             @JsonView(Invoice.View.Add.class)
             @Valid Invoice invoice,
+            @RequestHeader(name = InvoiceIdempotencyStore.IDEMPOTENCY_KEY, required = false) String idempotencyKey,
             @ApiIgnore Principal principal) {
-        if (principal != null) {
-            invoice.setCreatedBy(principal.getName());
-        }
-        em.persist(invoice);
-        URI location = ServletUriComponentsBuilder
-                .fromCurrentRequest()
-                .path("/{id}")
-                .buildAndExpand(invoice.getId())
-                .toUri();
-        return ResponseEntity.created(location).body(invoice);
+        return idempotencyStore.execute("addInvoice", principal, idempotencyKey, invoice, Invoice.View.All.class, () -> {
+            if (principal != null) {
+                invoice.setCreatedBy(principal.getName());
+            }
+            em.persist(invoice);
+            // Pre-render the PDF file that is usually downloaded next
+            pdfOutbox.add(invoice);
+            URI location = ServletUriComponentsBuilder
+                    .fromCurrentRequest()
+                    .path("/{id}")
+                    .buildAndExpand(invoice.getId())
+                    .toUri();
+            return ResponseEntity.created(location).body(invoice);
+        });
+    }
+
+    // Spring annotations
+    @PostMapping(path = "batch", consumes = {MediaType.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE})
+    // Security annotations
+    @RolesAllowed("add-invoice")
+    // Swagger annotations
+    @ApiOperation(value = "Add a batch of invoices",
+            notes = "Add a JSON array or a newline delimited JSON stream of invoices. "
+            + "Each invoice is validated individually and the outcome for each invoice is returned. "
+            + "Invalid invoices do not prevent the valid invoices from being added. "
+            + "A request with an Idempotency-Key that was used before "
+            + "receives the response to the first request instead of adding the invoices again, "
+            + "also when the first request failed after some of the invoices were added, "
+            + "as long as it repeats the request body.",
+            code = 200,
+            response = InvoiceBatchResult.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 400, message = "The input data is not well formed JSON, the outcome for the invoices read before the malformed JSON is returned")
+        ,@ApiResponse(code = 409, message = "A request with the same Idempotency-Key is still running")
+        ,@ApiResponse(code = 422, message = "The Idempotency-Key was used before with a different request body")
+        ,@ApiResponse(code = 500, message = "The batch did not complete, the outcome for the invoices added before the failure is returned")
+    })
+    public ResponseEntity<?> addInvoices(
+            @ApiIgnore InputStream body,
+            @RequestHeader(name = InvoiceIdempotencyStore.IDEMPOTENCY_KEY, required = false) String idempotencyKey,
+            @ApiIgnore Principal principal) {
+        // The chunks of the batch are saved in their own transactions, each
+        // with the response to replay if the rest of the batch fails
+        return idempotencyStore.executeInChunks("addInvoices", principal, idempotencyKey, body, null, (in, checkpoint) -> {
+            try {
+                InvoiceBatchResult result = batchService.add(in, principal == null ? null : principal.getName(),
+                        progress -> checkpoint.save(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(progress)));
+                if (result.getError() != null) {
+                    return ResponseEntity.badRequest().body(result);
+                }
+                return ResponseEntity.ok(result);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
     }
 
     // Spring annotations
     @GetMapping
+    // Swagger annotations
+    @ApiOperation(value = "View all invoices",
+            notes = "View a page of invoices ordered by client, optionally with the invoice totals. "
+            + "The Link header contains the URL of the next page when there are more invoices.",
+            code = 200,
+            responseContainer = "List",
+            response = InvoiceListItem.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 400, message = "The input data is invalid")
+    })
+    public ResponseEntity<List<InvoiceListItem>> viewAllInvoices(
+            @RequestParam(name = "after", required = false) String after,
+            @RequestParam(name = "limit", required = false) Integer limit,
+            @RequestParam(name = "totals", defaultValue = "false") boolean totals,
+            @ApiIgnore Principal principal) {
+        int pageSize = limit == null ? defaultPageSize : limit;
+        if (pageSize < 1 || pageSize > maxPageSize) {
+            return ResponseEntity.badRequest().build();
+        }
+        InvoiceCursor cursor;
+        try {
+            cursor = after == null ? null : InvoiceCursor.decode(after);
+        } catch (IllegalArgumentException ex) {
+            return ResponseEntity.badRequest().build();
+        }
+        // Fetch one extra invoice to find out whether there is a next page
+        return page(invoiceRepository.findListPage(cursor, pageSize + 1, totals), pageSize, InvoiceCursor::of);
+    }
+
+    // Spring annotations
+    @GetMapping(path = "search")
     // Jackson annotations
     @JsonView(Invoice.View.List.class)
     // Swagger annotations
-    @ApiOperation(value = "View all invoices",
-            notes = "View all invoices",
+    @ApiOperation(value = "Search invoices",
+            notes = "View a page of the invoices matching a client name prefix, an invoice date range "
+            + "and the user who created them, ordered by client. "
+            + "The Link header contains the URL of the next page when there are more invoices.",
             code = 200,
             responseContainer = "List",
             response = Invoice.class
     )
-    public ResponseEntity<List<Invoice>> viewAllInvoices(
+    @ApiResponses(value = {
+        @ApiResponse(code = 400, message = "The input data is invalid")
+    })
+    public ResponseEntity<List<Invoice>> searchInvoices(
+            @ModelAttribute InvoiceFilter filter,
+            @RequestParam(name = "after", required = false) String after,
+            @RequestParam(name = "limit", required = false) Integer limit,
             @ApiIgnore Principal principal) {
-        TypedQuery<Invoice> query = em.createNamedQuery("Invoice.FindAllInvoices", Invoice.class);
-        List<Invoice> invoices = query.getResultList();
-        return ResponseEntity.ok(invoices);
+        int pageSize = limit == null ? defaultPageSize : limit;
+        if (pageSize < 1 || pageSize > maxPageSize) {
+            return ResponseEntity.badRequest().build();
+        }
+        InvoiceCursor cursor;
+        try {
+            cursor = after == null ? null : InvoiceCursor.decode(after);
+        } catch (IllegalArgumentException ex) {
+            return ResponseEntity.badRequest().build();
+        }
+        // Fetch one extra invoice to find out whether there is a next page
+        return page(invoiceRepository.search(filter, cursor, pageSize + 1), pageSize, InvoiceCursor::of);
+    }
+
+    // Spring annotations
+    @GetMapping(path = "changes")
+    // Jackson annotations
+    @JsonView(Invoice.View.All.class)
+    // Swagger annotations
+    @ApiOperation(value = "View invoice changes",
+            notes = "View the invoices and their line items added or changed after a cursor, "
+            + "in the order they were committed, optionally waiting up to the given number of seconds for changes. "
+            + "The Link header contains the URL of the next changes, which is polled to keep a copy of the invoices up to date.",
+            code = 200,
+            responseContainer = "List",
+            response = Invoice.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 400, message = "The input data is invalid")
+    })
+    public CompletableFuture<ResponseEntity<List<Invoice>>> viewInvoiceChanges(
+            @RequestParam(name = "after", required = false) String after,
+            @RequestParam(name = "limit", required = false) Integer limit,
+            @RequestParam(name = "wait", defaultValue = "0") int wait,
+            @ApiIgnore Principal principal) {
+        int pageSize = limit == null ? defaultPageSize : limit;
+        if (pageSize < 1 || pageSize > maxPageSize || wait < 0 || wait > maxChangesWait) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        InvoiceChangeCursor cursor;
+        try {
+            cursor = after == null ? null : InvoiceChangeCursor.decode(after);
+        } catch (IllegalArgumentException ex) {
+            return CompletableFuture.completedFuture(ResponseEntity.badRequest().build());
+        }
+        // The request is not available when a waiting consumer is completed
+        ServletUriComponentsBuilder uri = ServletUriComponentsBuilder.fromCurrentRequest();
+        return changeFeed.findChanges(cursor, pageSize, wait * 1000L).thenApply(invoices -> {
+            // Without changes the consumer polls again from the same cursor
+            if (!invoices.isEmpty()) {
+                uri.replaceQueryParam("after", InvoiceChangeCursor.of(invoices.get(invoices.size() - 1)).encode());
+            }
+            URI next = uri.replaceQueryParam("limit", pageSize).build().toUri();
+            return ResponseEntity
+                    .ok()
+                    .header(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"")
+                    .body(invoices);
+        });
+    }
+
+    /**
+     * Respond with a page of invoices, linking to the next page if more
+     * invoices than the page size were found
+     */
+    private static <T> ResponseEntity<List<T>> page(List<T> invoices, int pageSize, Function<T, InvoiceCursor> cursor) {
+        if (invoices.size() <= pageSize) {
+            return ResponseEntity.ok(invoices);
+        }
+        invoices = invoices.subList(0, pageSize);
+        URI next = ServletUriComponentsBuilder
+                .fromCurrentRequest()
+                .replaceQueryParam("after", cursor.apply(invoices.get(pageSize - 1)).encode())
+                .replaceQueryParam("limit", pageSize)
+                .build()
+                .toUri();
+        return ResponseEntity
+                .ok()
+                .header(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"")
+                .body(invoices);
+    }
+
+    // Spring annotations
+    @GetMapping(path = "stream", produces = APPLICATION_NDJSON_VALUE)
+    // Swagger annotations
+    @ApiOperation(value = "Stream all invoices",
+            notes = "Stream all invoices ordered by client as newline delimited JSON",
+            code = 200,
+            responseContainer = "List",
+            response = Invoice.class
+    )
+    public ResponseEntity<StreamingResponseBody> streamAllInvoices(
+            @ApiIgnore Principal principal) {
+        ObjectWriter writer = objectMapper.writerWithView(Invoice.View.List.class);
+        StreamingResponseBody body = out -> readOnlyTransaction.execute(status -> {
+            invoiceRepository.forEach(streamFetchSize, invoice -> {
+                try {
+                    out.write(writer.writeValueAsBytes(invoice));
+                    out.write('\n');
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            return null;
+        });
+        return ResponseEntity
+                .ok()
+                .contentType(MediaType.valueOf(APPLICATION_NDJSON_VALUE))
+                .body(body);
     }
 
     // Spring annotations
@@ -134,24 +416,193 @@ public class InvoiceController {
             response = Invoice.class
     )
     @ApiResponses(value = {
-        @ApiResponse(code = 400, message = "The input data is invalid")
+        @ApiResponse(code = 304, message = "The invoice has not changed since the ETag in If-None-Match")
+        ,@ApiResponse(code = 400, message = "The input data is invalid")
         ,@ApiResponse(code = 404, message = "The invoiceId is invalid")
     })
     public ResponseEntity<Invoice> viewInvoice(
             @PathVariable Long invoiceId,
+            @ApiIgnore WebRequest webRequest,
             @ApiIgnore Principal principal) {
-        Invoice invoice = em.find(Invoice.class, invoiceId);
+        Long version = invoiceRepository.findVersion(invoiceId);
+        if (version == null) {
+            return ResponseEntity.notFound().build();
+        }
+        String representation = dataFormat(webRequest);
+        if (webRequest.checkNotModified(eTag(invoiceId, version, representation))) {
+            return null;
+        }
+        Invoice invoice = invoiceRepository.findWithLineItems(invoiceId);
         if (invoice == null) {
             return ResponseEntity.notFound().build();
         }
-        return ResponseEntity.ok(invoice);
+        return ResponseEntity
+                .ok()
+                .eTag(eTag(invoiceId, invoice.getVersion(), representation))
+                .varyBy(HttpHeaders.ACCEPT)
+                .body(invoice);
+    }
+
+    // Spring annotations
+    @PutMapping(path = "{invoiceId}")
+    // Security annotations
+    @RolesAllowed("add-invoice")
+    // Jackson annotations
+    @JsonView(Invoice.View.All.class)
+    // Swagger annotations
+    @ApiOperation(value = "Update an invoice",
+            notes = "Replace the client, VAT rate, invoice date and line items of an invoice. "
+            + "The version of the invoice and of each changed line item must be the version the changes were made to. "
+            + "Line items are matched by ID: line items without an ID are added and line items that are left out are removed.",
+            code = 200,
+            response = Invoice.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 400, message = "The input data is invalid")
+        ,@ApiResponse(code = 404, message = "The invoiceId is invalid")
+        ,@ApiResponse(code = 409, message = "The invoice was changed since the supplied version")
+    })
+    public ResponseEntity<Invoice> updateInvoice(
+            @PathVariable Long invoiceId,
+            @RequestBody
+            @JsonView(Invoice.View.Edit.class)
+            @Valid Invoice changes,
+            @ApiIgnore WebRequest webRequest,
+            @ApiIgnore Principal principal) {
+        return update(invoiceId, changes, false, webRequest);
+    }
+
+    // Spring annotations
+    @PatchMapping(path = "{invoiceId}")
+    // Security annotations
+    @RolesAllowed("add-invoice")
+    // Jackson annotations
+    @JsonView(Invoice.View.All.class)
+    // Swagger annotations
+    @ApiOperation(value = "Change an invoice",
+            notes = "Change the specified fields of an invoice, leaving the other fields unchanged. "
+            + "The version of the invoice and of each changed line item must be the version the changes were made to. "
+            + "When line items are specified they are matched by ID: only the specified fields of a line item are changed, "
+            + "line items without an ID are added and line items that are left out are removed.",
+            code = 200,
+            response = Invoice.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 400, message = "The input data is invalid")
+        ,@ApiResponse(code = 404, message = "The invoiceId is invalid")
+        ,@ApiResponse(code = 409, message = "The invoice was changed since the supplied version")
+    })
+    @ApiImplicitParam(name = "changes", paramType = "body", dataType = "Invoice", required = true)
+    public ResponseEntity<Invoice> patchInvoice(
+            @PathVariable Long invoiceId,
+            @ApiIgnore @RequestBody ObjectNode body,
+            @ApiIgnore WebRequest webRequest,
+            @ApiIgnore Principal principal) {
+        Invoice changes;
+        try {
+            changes = objectMapper.readerWithView(Invoice.View.Edit.class).forType(Invoice.class).readValue(body);
+        } catch (IOException ex) {
+            log.fine(ex.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        // The line items are deserialized as an empty list when they are not
+        // specified, which would remove all the line items
+        if (!body.has("lineItems")) {
+            changes.setLineItems(null);
+        }
+        return update(invoiceId, changes, true, webRequest);
+    }
+
+    private ResponseEntity<Invoice> update(Long invoiceId, Invoice changes, boolean partial, WebRequest webRequest) {
+        if (changes.getVersion() == null) {
+            return ResponseEntity.badRequest().build();
+        }
+        Invoice invoice;
+        try {
+            invoice = updateService.update(invoiceId, changes, partial);
+        } catch (OptimisticLockException | ObjectOptimisticLockingFailureException ex) {
+            log.fine(ex.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        } catch (ConstraintViolationException | IllegalArgumentException ex) {
+            log.fine(ex.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        if (invoice == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity
+                .ok()
+                .eTag(eTag(invoiceId, invoice.getVersion(), dataFormat(webRequest)))
+                .varyBy(HttpHeaders.ACCEPT)
+                .body(invoice);
     }
 
     // Spring annotations
     @GetMapping(path = "{invoiceId}/pdf", produces = MediaType.APPLICATION_PDF_VALUE)
     // Swagger annotations
     @ApiOperation(value = "View an invoice PDF by ID",
-            notes = "View an invoice PDF by ID",
+            notes = "View an invoice PDF by ID. "
+            + "Invoice PDF files are rendered on a bounded pool of render threads.",
+            code = 200,
+            response = MultipartFile.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 304, message = "The invoice has not changed since the ETag in If-None-Match")
+        ,@ApiResponse(code = 400, message = "The input data is invalid")
+        ,@ApiResponse(code = 404, message = "The invoiceId is invalid")
+        ,@ApiResponse(code = 503, message = "Too many invoice PDF files are being rendered, retry after the Retry-After seconds")
+    })
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> viewInvoicePdf(
+            @PathVariable Long invoiceId,
+            @ApiIgnore WebRequest webRequest,
+            @ApiIgnore Principal principal) {
+        Long version = invoiceRepository.findVersion(invoiceId);
+        if (version == null) {
+            return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
+        }
+        if (webRequest.checkNotModified(eTag(invoiceId, version, "pdf"))) {
+            return CompletableFuture.completedFuture(null);
+        }
+        InvoicePdfCache.CachedPdf pdf = pdfCache.get(invoiceId, version);
+        if (pdf != null) {
+            return CompletableFuture.completedFuture(pdfResponse(invoiceId, version, pdf));
+        }
+        // Free the request thread while the invoice PDF file is rendered
+        try {
+            if (largePdfRenderer.isLarge(invoiceId)) {
+                return CompletableFuture.completedFuture(streamLargeInvoicePdf(invoiceId, version));
+            }
+            Invoice invoice = invoiceRepository.findWithLineItems(invoiceId);
+            if (invoice == null) {
+                return CompletableFuture.completedFuture(ResponseEntity.notFound().build());
+            }
+            if (invoice.getLineItems().size() > streamingThreshold) {
+                return CompletableFuture.completedFuture(streamInvoicePdf(invoice));
+            }
+            return renderExecutor.submit(() -> pdfResponse(invoiceId, invoice.getVersion(),
+                    pdfCache.put(invoiceId, invoice.getVersion(), pdfRenderer.renderPdf(invoice))));
+        } catch (RejectedExecutionException ex) {
+            return CompletableFuture.completedFuture(ResponseEntity
+                    .status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(renderRetryAfter))
+                    .build());
+        }
+    }
+
+    private static ResponseEntity<StreamingResponseBody> pdfResponse(Long invoiceId, Long version, InvoicePdfCache.CachedPdf pdf) {
+        return ResponseEntity
+                .ok()
+                .eTag(eTag(invoiceId, version, "pdf"))
+                .contentLength(pdf.getSize())
+                .header("Content-Disposition", "attachment; filename=\"invoice-" + invoiceId + ".pdf\"")
+                .body(pdf::writeTo);
+    }
+
+    // Spring annotations
+    @GetMapping(path = "{invoiceId}/export", produces = MediaType.ALL_VALUE)
+    // Swagger annotations
+    @ApiOperation(value = "Export an invoice by ID",
+            notes = "Export an invoice with one row per line item as a CSV (csv), JSON Lines (jsonl) or Excel (xlsx) file",
             code = 200,
             response = MultipartFile.class
     )
@@ -159,28 +610,129 @@ public class InvoiceController {
         @ApiResponse(code = 400, message = "The input data is invalid")
         ,@ApiResponse(code = 404, message = "The invoiceId is invalid")
     })
-    public ResponseEntity<byte[]> viewInvoicePdf(
+    public ResponseEntity<StreamingResponseBody> exportInvoice(
             @PathVariable Long invoiceId,
-            @ApiIgnore Principal principal) throws JRException {
-        Invoice invoice = em.find(Invoice.class, invoiceId);
-        if (invoice == null) {
+            @RequestParam(name = "format") String format,
+            @ApiIgnore Principal principal) {
+        if (invoiceRepository.findVersion(invoiceId) == null) {
             return ResponseEntity.notFound().build();
         }
-        // Render the invoice PDF file
-        File jasperReportFile = new File("src/main/resources/jasper/Invoice.jasper");
-        JasperReport jasperReport = (JasperReport) JRLoader.loadObject(jasperReportFile);
-        JasperPrint jasperPrint = JasperFillManager.fillReport(
-                jasperReport,
-                new HashMap<>(),
-                new JRBeanCollectionDataSource(Arrays.asList(invoice))
-        );
-        // Export the invoice report to PDF
-        byte[] pdfFileBytes = JasperExportManager.exportReportToPdf(jasperPrint);
+        return export(format, invoiceId, new InvoiceFilter(), "invoice-" + invoiceId);
+    }
+
+    // Spring annotations
+    @GetMapping(path = "export", produces = MediaType.ALL_VALUE)
+    // Swagger annotations
+    @ApiOperation(value = "Export invoices",
+            notes = "Export the invoices matching a client, a client name prefix, an invoice date range "
+            + "and the user who created them, with one row per line item ordered by client, "
+            + "as a CSV (csv), JSON Lines (jsonl) or Excel (xlsx) file",
+            code = 200,
+            response = MultipartFile.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 400, message = "The input data is invalid")
+    })
+    public ResponseEntity<StreamingResponseBody> exportInvoices(
+            @ModelAttribute InvoiceFilter filter,
+            @RequestParam(name = "format") String format,
+            @ApiIgnore Principal principal) {
+        return export(format, null, filter, "invoices");
+    }
+
+    /**
+     * Stream an export file to the response as the rows are read from the
+     * database
+     */
+    private ResponseEntity<StreamingResponseBody> export(String format, Long invoiceId, InvoiceFilter filter, String fileName) {
+        InvoiceExportFormat exportFormat;
+        try {
+            exportFormat = InvoiceExportFormat.forExtension(format);
+        } catch (IllegalArgumentException ex) {
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity
+                .ok()
+                .contentType(exportFormat.getMediaType())
+                .header("Content-Disposition", "attachment; filename=\"" + fileName + "." + exportFormat.getExtension() + "\"")
+                .body(out -> exporter.export(exportFormat, invoiceId, filter, out));
+    }
+
+    /**
+     * Fill the invoice report and stream the PDF file to the response as it is
+     * exported, instead of holding the whole PDF file in memory. The length of
+     * the PDF file is not known up front, so the response is chunked. The
+     * report is filled and exported on the render pool.
+     */
+    private ResponseEntity<StreamingResponseBody> streamInvoicePdf(Invoice invoice) {
+        StreamingResponseBody body = renderExecutor.stream(out -> {
+            try (InvoicePdfCache.CachingOutputStream cachingOut
+                    = pdfCache.cachingOutput(invoice.getId(), invoice.getVersion(), out)) {
+                pdfRenderer.export(pdfRenderer.fill(invoice), cachingOut);
+                cachingOut.commit();
+            } catch (JRException ex) {
+                throw new IOException(ex);
+            }
+        });
+        return ResponseEntity
+                .ok()
+                .eTag(eTag(invoice.getId(), invoice.getVersion(), "pdf"))
+                .header("Content-Disposition", "attachment; filename=\"invoice-" + invoice.getId() + ".pdf\"")
+                .body(body);
+    }
+
+    /**
+     * Stream the PDF file of an invoice with too many line items to render in
+     * memory. The invoice report is filled on the render pool while the
+     * response is written.
+     */
+    private ResponseEntity<StreamingResponseBody> streamLargeInvoicePdf(Long invoiceId, Long version) {
+        StreamingResponseBody body = renderExecutor.stream(out -> {
+            try (InvoicePdfCache.CachingOutputStream cachingOut = pdfCache.cachingOutput(invoiceId, version, out)) {
+                // Only cache the PDF file if the invoice did not change in the meantime
+                if (version.equals(largePdfRenderer.renderPdf(invoiceId, cachingOut))) {
+                    cachingOut.commit();
+                }
+            } catch (JRException ex) {
+                throw new IOException(ex);
+            }
+        });
         return ResponseEntity
                 .ok()
-                .contentLength(pdfFileBytes.length)
+                .eTag(eTag(invoiceId, version, "pdf"))
                 .header("Content-Disposition", "attachment; filename=\"invoice-" + invoiceId + ".pdf\"")
-                .body(pdfFileBytes);
+                .body(body);
+    }
+
+    /**
+     * Create a strong entity tag for a representation of a version of an
+     * invoice. The JSON, Smile, CBOR and PDF representations have different
+     * entity tags.
+     */
+    private static String eTag(Long invoiceId, Long version, String representation) {
+        return "\"" + invoiceId + "-" + version + "-" + representation + "\"";
+    }
+
+    /**
+     * Find the data format of the representation the client accepts, in the
+     * order the formats are produced
+     */
+    private static String dataFormat(WebRequest webRequest) {
+        String accept = webRequest.getHeader(HttpHeaders.ACCEPT);
+        if (accept != null) {
+            List<MediaType> mediaTypes = MediaType.parseMediaTypes(accept);
+            MediaType.sortBySpecificityAndQuality(mediaTypes);
+            for (MediaType mediaType : mediaTypes) {
+                if (mediaType.includes(MediaType.APPLICATION_JSON)) {
+                    return "json";
+                } else if (mediaType.includes(MediaType.valueOf(APPLICATION_SMILE_VALUE))) {
+                    return "smile";
+                } else if (mediaType.includes(MediaType.valueOf(APPLICATION_CBOR_VALUE))) {
+                    return "cbor";
+                }
+            }
+        }
+        return "json";
     }
 
 }
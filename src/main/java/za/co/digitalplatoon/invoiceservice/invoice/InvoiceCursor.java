@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import lombok.Value;
+
+/**
+ * An opaque keyset pagination cursor pointing at the last invoice of a page
+ * of invoices ordered by client and ID
+ *
+ * @author William Gadney
+ */
+// Lombok annotations
+@Value
+public class InvoiceCursor {
+
+    private final String client;
+
+    private final Long id;
+
+    /**
+     * Create a cursor pointing at an invoice
+     *
+     * @param invoice The last invoice of a page
+     * @return The cursor
+     */
+    public static InvoiceCursor of(Invoice invoice) {
+        return new InvoiceCursor(invoice.getClient(), invoice.getId());
+    }
+
+    /**
+     * Create a cursor pointing at an invoice list item
+     *
+     * @param item The last invoice list item of a page
+     * @return The cursor
+     */
+    public static InvoiceCursor of(InvoiceListItem item) {
+        return new InvoiceCursor(item.getClient(), item.getId());
+    }
+
+    /**
+     * Decode a cursor previously returned by {@link #encode()}
+     *
+     * @param value The encoded cursor
+     * @return The cursor
+     * @throws IllegalArgumentException If the value is not a valid cursor
+     */
+    public static InvoiceCursor decode(String value) {
+        String decoded = new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8);
+        int separator = decoded.indexOf(':');
+        if (separator < 1) {
+            throw new IllegalArgumentException("Invalid invoice cursor " + value);
+        }
+        return new InvoiceCursor(
+                decoded.substring(separator + 1),
+                Long.valueOf(decoded.substring(0, separator))
+        );
+    }
+
+    /**
+     * Encode the cursor as a URL safe string
+     *
+     * @return The encoded cursor
+     */
+    public String encode() {
+        String decoded = id + ":" + client;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(decoded.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
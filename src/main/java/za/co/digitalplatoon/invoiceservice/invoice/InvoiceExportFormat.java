@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import org.springframework.http.MediaType;
+
+/**
+ * The file formats of invoice exports
+ *
+ * @author William Gadney
+ */
+public enum InvoiceExportFormat {
+
+    /**
+     * Comma separated values with a header row
+     */
+    CSV("csv", MediaType.valueOf("text/csv")),
+    /**
+     * One JSON object per line
+     */
+    JSON_LINES("jsonl", MediaType.valueOf(InvoiceController.APPLICATION_NDJSON_VALUE)),
+    /**
+     * An Excel workbook with a header row
+     */
+    XLSX("xlsx", MediaType.valueOf("application/vnd.openxmlformats-officedocument.spreadsheetml.sheet"));
+
+    private final String extension;
+    private final MediaType mediaType;
+
+    InvoiceExportFormat(String extension, MediaType mediaType) {
+        this.extension = extension;
+        this.mediaType = mediaType;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * Find an export format by its file name extension
+     *
+     * @param extension The file name extension
+     * @return The export format
+     * @throws IllegalArgumentException If there is no export format with the
+     * extension
+     */
+    public static InvoiceExportFormat forExtension(String extension) {
+        for (InvoiceExportFormat format : values()) {
+            if (format.extension.equalsIgnoreCase(extension)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported export format " + extension);
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import java.math.BigDecimal;
+import java.util.Date;
+import lombok.Getter;
+
+/**
+ * A row of an invoice export: an invoice line item together with the
+ * invoice it is on, selected directly from the database without loading the
+ * entities
+ *
+ * @author William Gadney
+ */
+// Jackson annotations
+@JsonPropertyOrder({
+    "invoiceId",
+    "client",
+    "invoiceDate",
+    "createdBy",
+    "vatRate",
+    "lineItemId",
+    "quantity",
+    "description",
+    "unitPrice",
+    "lineItemTotal",
+    "invoiceSubTotal",
+    "invoiceVat",
+    "invoiceTotal"
+})
+// Lombok annotations
+@Getter
+public class InvoiceExportRow {
+
+    /**
+     * The column names of the CSV and XLSX exports, in the order of
+     * {@link #values()}
+     */
+    static final String[] COLUMNS = {
+        "invoiceId",
+        "client",
+        "invoiceDate",
+        "createdBy",
+        "vatRate",
+        "lineItemId",
+        "quantity",
+        "description",
+        "unitPrice",
+        "lineItemTotal",
+        "invoiceSubTotal",
+        "invoiceVat",
+        "invoiceTotal"
+    };
+
+    private final Long invoiceId;
+
+    private final String client;
+
+    // Jackson annotations
+    @JsonFormat(pattern = "yyyy-MM-dd")
+    private final Date invoiceDate;
+
+    private final String createdBy;
+
+    private final Long vatRate;
+
+    private final Long lineItemId;
+
+    private final Long quantity;
+
+    private final String description;
+
+    private final BigDecimal unitPrice;
+
+    private final BigDecimal lineItemTotal;
+
+    private final BigDecimal invoiceSubTotal;
+
+    private final BigDecimal invoiceVat;
+
+    private final BigDecimal invoiceTotal;
+
+    // The constructor is public for the JPQL constructor expression
+    public InvoiceExportRow(Long invoiceId, String client, Date invoiceDate, String createdBy, Long vatRate,
+            Long lineItemId, Long quantity, String description, BigDecimal unitPrice, BigDecimal lineItemTotal,
+            BigDecimal invoiceSubTotal, BigDecimal invoiceVat, BigDecimal invoiceTotal) {
+        this.invoiceId = invoiceId;
+        this.client = client;
+        this.invoiceDate = invoiceDate;
+        this.createdBy = createdBy;
+        this.vatRate = vatRate;
+        this.lineItemId = lineItemId;
+        this.quantity = quantity;
+        this.description = description;
+        this.unitPrice = unitPrice;
+        this.lineItemTotal = lineItemTotal;
+        this.invoiceSubTotal = invoiceSubTotal;
+        this.invoiceVat = invoiceVat;
+        this.invoiceTotal = invoiceTotal;
+    }
+
+    /**
+     * Get the values of the row in the order of the {@link #COLUMNS}
+     *
+     * @return The row values
+     */
+    Object[] values() {
+        return new Object[]{
+            invoiceId,
+            client,
+            invoiceDate,
+            createdBy,
+            vatRate,
+            lineItemId,
+            quantity,
+            description,
+            unitPrice,
+            lineItemTotal,
+            invoiceSubTotal,
+            invoiceVat,
+            invoiceTotal
+        };
+    }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.DataFormat;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * A service that exports invoices with their line items as CSV, JSON Lines or
+ * XLSX files.
+ * <p>
+ * The rows are read from a database cursor and written to the output as they
+ * are read, so memory use does not grow with the number of exported invoices.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Service
+public class InvoiceExporter {
+
+    private final InvoiceRepository invoiceRepository;
+
+    private final ObjectWriter jsonWriter;
+
+    private final int fetchSize;
+
+    private final int xlsxWindowSize;
+
+    public InvoiceExporter(
+            InvoiceRepository invoiceRepository,
+            ObjectMapper objectMapper,
+            @Value("${invoice.export.fetch-size:500}") int fetchSize,
+            @Value("${invoice.export.xlsx-window-size:100}") int xlsxWindowSize) {
+        this.invoiceRepository = invoiceRepository;
+        this.jsonWriter = objectMapper.writerFor(InvoiceExportRow.class);
+        this.fetchSize = fetchSize;
+        this.xlsxWindowSize = xlsxWindowSize;
+    }
+
+    /**
+     * Export an invoice, or the invoices matching a filter, one row per line
+     * item ordered by client, invoice ID and line item ID
+     *
+     * @param format The export file format
+     * @param invoiceId The invoice ID, or null for the invoices matching the
+     * filter
+     * @param filter The invoice filter
+     * @param out The stream the export file is written to. The stream is
+     * flushed but not closed.
+     * @throws IOException If the export file could not be written
+     */
+    // Spring annotations
+    @Transactional(readOnly = true)
+    public void export(InvoiceExportFormat format, Long invoiceId, InvoiceFilter filter, OutputStream out) throws IOException {
+        try (RowWriter writer = writer(format, out)) {
+            invoiceRepository.forEachExportRow(invoiceId, filter, fetchSize, row -> {
+                try {
+                    writer.write(row);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            writer.finish();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private RowWriter writer(InvoiceExportFormat format, OutputStream out) throws IOException {
+        switch (format) {
+            case CSV:
+                return new CsvRowWriter(out);
+            case JSON_LINES:
+                return new JsonLinesRowWriter(jsonWriter, out);
+            case XLSX:
+                return new XlsxRowWriter(out, xlsxWindowSize);
+            default:
+                throw new IllegalStateException("Unsupported format " + format);
+        }
+    }
+
+    /**
+     * Writes the rows of an export file as they are read
+     */
+    private interface RowWriter extends Closeable {
+
+        void write(InvoiceExportRow row) throws IOException;
+
+        /**
+         * Write the end of the export file after the last row
+         */
+        void finish() throws IOException;
+
+        @Override
+        default void close() throws IOException {
+        }
+
+    }
+
+    /**
+     * Writes RFC 4180 comma separated values with a header row
+     */
+    private static class CsvRowWriter implements RowWriter {
+
+        private final Writer writer;
+
+        private final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+        CsvRowWriter(OutputStream out) throws IOException {
+            writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            writeRecord(InvoiceExportRow.COLUMNS);
+        }
+
+        @Override
+        public void write(InvoiceExportRow row) throws IOException {
+            writeRecord(row.values());
+        }
+
+        @Override
+        public void finish() throws IOException {
+            writer.flush();
+        }
+
+        private void writeRecord(Object[] values) throws IOException {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writeField(values[i]);
+            }
+            writer.write("\r\n");
+        }
+
+        private void writeField(Object value) throws IOException {
+            if (value == null) {
+                return;
+            }
+            String text;
+            if (value instanceof Date) {
+                text = dateFormat.format((Date) value);
+            } else if (value instanceof BigDecimal) {
+                text = ((BigDecimal) value).toPlainString();
+            } else {
+                text = value.toString();
+            }
+            if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\r') < 0 && text.indexOf('\n') < 0) {
+                writer.write(text);
+            } else {
+                writer.write('"');
+                writer.write(text.replace("\"", "\"\""));
+                writer.write('"');
+            }
+        }
+
+    }
+
+    /**
+     * Writes one JSON object per line
+     */
+    private static class JsonLinesRowWriter implements RowWriter {
+
+        private final ObjectWriter jsonWriter;
+
+        private final OutputStream out;
+
+        JsonLinesRowWriter(ObjectWriter jsonWriter, OutputStream out) {
+            this.jsonWriter = jsonWriter;
+            this.out = new BufferedOutputStream(out);
+        }
+
+        @Override
+        public void write(InvoiceExportRow row) throws IOException {
+            out.write(jsonWriter.writeValueAsBytes(row));
+            out.write('\n');
+        }
+
+        @Override
+        public void finish() throws IOException {
+            out.flush();
+        }
+
+    }
+
+    /**
+     * Writes an Excel workbook through a sliding window of rows. The rows
+     * that leave the window are flushed to a compressed temporary file, which
+     * is copied to the output when the workbook is finished.
+     */
+    private static class XlsxRowWriter implements RowWriter {
+
+        private static final int MAX_ROWS = SpreadsheetVersion.EXCEL2007.getMaxRows();
+
+        private final OutputStream out;
+
+        private final SXSSFWorkbook workbook;
+
+        private final CellStyle dateStyle;
+
+        private final CellStyle amountStyle;
+
+        private Sheet sheet;
+
+        private int rowIndex;
+
+        XlsxRowWriter(OutputStream out, int windowSize) {
+            this.out = out;
+            this.workbook = new SXSSFWorkbook(windowSize);
+            this.workbook.setCompressTempFiles(true);
+            DataFormat dataFormat = workbook.createDataFormat();
+            this.dateStyle = workbook.createCellStyle();
+            this.dateStyle.setDataFormat(dataFormat.getFormat("yyyy-mm-dd"));
+            this.amountStyle = workbook.createCellStyle();
+            this.amountStyle.setDataFormat(dataFormat.getFormat("0.00"));
+            newSheet();
+        }
+
+        @Override
+        public void write(InvoiceExportRow row) throws IOException {
+            // Continue on a new sheet once a sheet is full
+            if (rowIndex == MAX_ROWS) {
+                newSheet();
+            }
+            Row sheetRow = sheet.createRow(rowIndex++);
+            Object[] values = row.values();
+            for (int i = 0; i < values.length; i++) {
+                Object value = values[i];
+                if (value == null) {
+                    continue;
+                }
+                Cell cell = sheetRow.createCell(i);
+                if (value instanceof Date) {
+                    cell.setCellValue((Date) value);
+                    cell.setCellStyle(dateStyle);
+                } else if (value instanceof BigDecimal) {
+                    cell.setCellValue(((BigDecimal) value).doubleValue());
+                    cell.setCellStyle(amountStyle);
+                } else if (value instanceof Number) {
+                    cell.setCellValue(((Number) value).doubleValue());
+                } else {
+                    cell.setCellValue(value.toString());
+                }
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            workbook.write(out);
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            workbook.dispose();
+            workbook.close();
+        }
+
+        private void newSheet() {
+            sheet = workbook.createSheet("Invoices " + (workbook.getNumberOfSheets() + 1));
+            Row header = sheet.createRow(0);
+            for (int i = 0; i < InvoiceExportRow.COLUMNS.length; i++) {
+                header.createCell(i).setCellValue(InvoiceExportRow.COLUMNS[i]);
+            }
+            rowIndex = 1;
+        }
+
+    }
+
+}
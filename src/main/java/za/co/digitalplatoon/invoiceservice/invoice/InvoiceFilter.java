@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import io.swagger.annotations.ApiModelProperty;
+import java.io.Serializable;
+import java.util.Date;
+import lombok.Data;
+import org.springframework.format.annotation.DateTimeFormat;
+
+/**
+ * The criteria used to select a set of invoices
+ *
+ * @author William Gadney
+ */
+// Lombok annotations
+@Data
+public class InvoiceFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "Only select the invoices for this client.",
+            example = "ABC Transport",
+            position = 1
+    )
+    private String client;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "Only select the invoices for clients whose names start with this prefix.",
+            example = "ABC",
+            position = 2
+    )
+    private String clientPrefix;
+
+    // Spring annotations
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+    // Jackson annotations
+    @JsonFormat(pattern = "yyyy-MM-dd")
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "Only select the invoices dated on or after this date.",
+            example = "2018-04-01",
+            position = 3
+    )
+    private Date fromDate;
+
+    // Spring annotations
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+    // Jackson annotations
+    @JsonFormat(pattern = "yyyy-MM-dd")
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "Only select the invoices dated on or before this date.",
+            example = "2018-04-30",
+            position = 4
+    )
+    private Date toDate;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "Only select the invoices created by this user.",
+            example = "willy",
+            position = 5
+    )
+    private String createdBy;
+
+    /**
+     * Check whether any criteria have been specified
+     *
+     * @return true if no criteria have been specified
+     */
+    // Jackson annotations
+    @JsonIgnore
+    public boolean isEmpty() {
+        return client == null && clientPrefix == null && fromDate == null && toDate == null && createdBy == null;
+    }
+
+}
@@ -0,0 +1,511 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Principal;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * A store of the responses to requests with an Idempotency-Key, so that a
+ * client that retries a request receives the response to the first request
+ * instead of adding the invoices again.
+ * <p>
+ * The requests that are running are kept in memory, so a duplicate that
+ * arrives while the first request is running waits for its response rather
+ * than running again. Successful responses are saved in the database until
+ * they expire, so that retries are also answered after the first request
+ * completed, by another instance or before a restart. Failed responses are
+ * not saved, so a failed request can be retried with the same key.
+ * <p>
+ * A request that commits its work in chunks saves a checkpoint response in
+ * the transaction of each chunk. Once a chunk is committed, its final
+ * response is saved even if it failed, and a request that failed without a
+ * response is answered with its last checkpoint, so that a retry never
+ * repeats the committed chunks.
+ * <p>
+ * Each response is saved with a hash of the request body, and a request that
+ * reuses a key with a different body is rejected with 422 instead of being
+ * answered with the response to the other body. A streamed request body is
+ * hashed as it is read, so a checkpoint or a failed response is matched
+ * against the part of the body read before it was saved, and a successful
+ * response against the whole body.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Service
+// Lombok annotations
+@Log
+public class InvoiceIdempotencyStore {
+
+    public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+    public static final String IDEMPOTENT_REPLAYED = "Idempotent-Replayed";
+
+    private static final int MAX_KEY_LENGTH = 255;
+
+    @PersistenceContext
+    private EntityManager em;
+
+    private final ObjectMapper objectMapper;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final long timeToLive;
+
+    private final long waitTimeout;
+
+    private final ConcurrentMap<String, CompletableFuture<Outcome>> running = new ConcurrentHashMap<>();
+
+    private final Counter replays;
+
+    private final Counter mismatches;
+
+    public InvoiceIdempotencyStore(
+            ObjectMapper objectMapper,
+            PlatformTransactionManager transactionManager,
+            MeterRegistry meterRegistry,
+            @Value("${invoice.idempotency.time-to-live:86400000}") long timeToLive,
+            @Value("${invoice.idempotency.wait-timeout:60000}") long waitTimeout) {
+        this.objectMapper = objectMapper;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.timeToLive = timeToLive;
+        this.waitTimeout = waitTimeout;
+        this.replays = Counter.builder("invoice.idempotency.replays")
+                .description("The number of requests answered with the response to an earlier request with the same idempotency key")
+                .register(meterRegistry);
+        this.mismatches = Counter.builder("invoice.idempotency.mismatches")
+                .description("The number of requests rejected because they reused an idempotency key with a different request body")
+                .register(meterRegistry);
+        Gauge.builder("invoice.idempotency.running", running, ConcurrentMap::size)
+                .description("The number of requests with an idempotency key that are running")
+                .register(meterRegistry);
+    }
+
+    /**
+     * A checkpoint of a request that commits its work in chunks
+     */
+    @FunctionalInterface
+    public interface Checkpoint {
+
+        /**
+         * Save the response to replay if the request fails after the current
+         * chunk. It must be called in the transaction of the chunk.
+         *
+         * @param response The response describing the work committed so far
+         */
+        void save(ResponseEntity<?> response);
+
+    }
+
+    /**
+     * Run a request once for an idempotency key, in the transaction that
+     * saves its response. The response to an earlier request of the same user
+     * and operation with the same key is returned instead when there is one.
+     *
+     * @param operation The name of the operation
+     * @param principal The logged in user or null
+     * @param key The idempotency key, or null to always run the request
+     * @param requestBody The request body, which a retry must repeat
+     * @param view The Jackson view the response body is written with, or null
+     * @param request The request
+     * @return The response
+     */
+    public ResponseEntity<?> execute(String operation, Principal principal, String key, Object requestBody,
+            Class<?> view, Supplier<ResponseEntity<?>> request) {
+        if (key == null) {
+            return transactionTemplate.execute(status -> request.get());
+        }
+        RequestDigest digest = new RequestDigest();
+        try {
+            digest.update(objectMapper.writeValueAsBytes(requestBody));
+        } catch (JsonProcessingException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return executeOnce(operation, principal, key, digest, id -> transactionTemplate.execute(status -> {
+            Outcome saved = find(id);
+            if (saved != null) {
+                return saved;
+            }
+            ResponseEntity<?> response = request.get();
+            if (response.getStatusCode().is2xxSuccessful()) {
+                save(id, view, response, digest);
+            }
+            return new Outcome(response, digest.hash(), digest.length, false);
+        }));
+    }
+
+    /**
+     * Run a request that commits its work in chunks, each in its own
+     * transaction, once for an idempotency key. The response to an earlier
+     * request of the same user and operation with the same key is returned
+     * instead when there is one.
+     *
+     * @param operation The name of the operation
+     * @param principal The logged in user or null
+     * @param key The idempotency key, or null to always run the request
+     * @param body The request body, which a retry must repeat
+     * @param view The Jackson view the response body is written with, or null
+     * @param request The request, which reads the request body it is given
+     * and saves a checkpoint with each chunk
+     * @return The response
+     */
+    public ResponseEntity<?> executeInChunks(String operation, Principal principal, String key, InputStream body,
+            Class<?> view, BiFunction<InputStream, Checkpoint, ResponseEntity<?>> request) {
+        if (key == null) {
+            return request.apply(body, response -> {
+            });
+        }
+        RequestDigest digest = new RequestDigest(body);
+        return executeOnce(operation, principal, key, digest, id -> {
+            Outcome saved = transactionTemplate.execute(status -> find(id));
+            if (saved != null) {
+                return saved;
+            }
+            boolean[] committed = {false};
+            ResponseEntity<?> response = request.apply(digest.stream, checkpoint -> {
+                save(id, view, checkpoint, digest);
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        committed[0] = true;
+                    }
+                });
+            });
+            if (response.getStatusCode().is2xxSuccessful()) {
+                digest.readToEnd();
+            }
+            // The failed response of a partly committed request is saved too
+            if (response.getStatusCode().is2xxSuccessful() || committed[0]) {
+                transactionTemplate.execute(status -> {
+                    save(id, view, response, digest);
+                    return null;
+                });
+            }
+            return new Outcome(response, digest.hash(), digest.length, false);
+        });
+    }
+
+    /**
+     * Run a request unless a request with the same key is running, in which
+     * case its response is awaited
+     */
+    private ResponseEntity<?> executeOnce(String operation, Principal principal, String key, RequestDigest digest,
+            Function<String, Outcome> request) {
+        if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+            return ResponseEntity.badRequest().build();
+        }
+        String id = id(operation, principal, key);
+        while (true) {
+            CompletableFuture<Outcome> future = new CompletableFuture<>();
+            CompletableFuture<Outcome> first = running.putIfAbsent(id, future);
+            if (first == null) {
+                try {
+                    Outcome outcome = request.apply(id);
+                    future.complete(outcome);
+                    return outcome.saved ? replay(outcome, digest) : outcome.response;
+                } catch (RuntimeException ex) {
+                    future.completeExceptionally(ex);
+                    throw ex;
+                } finally {
+                    running.remove(id, future);
+                }
+            }
+            try {
+                return replay(first.get(waitTimeout, TimeUnit.MILLISECONDS), digest);
+            } catch (ExecutionException ex) {
+                // The first request failed without a response, so this request runs instead
+            } catch (TimeoutException ex) {
+                return ResponseEntity.status(HttpStatus.CONFLICT).build();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return ResponseEntity.status(HttpStatus.CONFLICT).build();
+            }
+        }
+    }
+
+    /**
+     * Find the saved response that has not expired
+     */
+    private Outcome find(String id) {
+        InvoiceIdempotentResponse saved = em.find(InvoiceIdempotentResponse.class, id);
+        if (saved == null || saved.getExpires().before(new Date())) {
+            return null;
+        }
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(saved.getStatus());
+        if (saved.getLocation() != null) {
+            response.location(URI.create(saved.getLocation()));
+        }
+        try {
+            return new Outcome(response.body(saved.getBody() == null ? null : objectMapper.readTree(saved.getBody())),
+                    saved.getRequestHash(), saved.getRequestLength() == null ? 0 : saved.getRequestLength(), true);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Save a response with the hash of the request body read so far,
+     * replacing an expired response or a checkpoint with the same key
+     */
+    private void save(String id, Class<?> view, ResponseEntity<?> response, RequestDigest digest) {
+        try {
+            byte[] body = response.getBody() == null ? null
+                    : (view == null ? objectMapper.writer() : objectMapper.writerWithView(view)).writeValueAsBytes(response.getBody());
+            URI location = response.getHeaders().getLocation();
+            em.merge(new InvoiceIdempotentResponse(id, response.getStatusCodeValue(),
+                    location == null ? null : location.toString(), body, digest.hash(), digest.length,
+                    new Date(System.currentTimeMillis() + timeToLive)));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Answer a request with the response to an earlier request with the same
+     * key, if the request repeats the earlier request body
+     */
+    private ResponseEntity<?> replay(Outcome earlier, RequestDigest digest) {
+        // A successful response was sent after the whole request body was read
+        boolean whole = earlier.response.getStatusCode().is2xxSuccessful();
+        // The responses saved before the request hashes were kept are replayed to any request body
+        if (earlier.requestHash != null && !digest.matches(earlier.requestHash, earlier.requestLength, whole)) {
+            mismatches.increment();
+            return ResponseEntity.unprocessableEntity().build();
+        }
+        replays.increment();
+        return ResponseEntity
+                .status(earlier.response.getStatusCode())
+                .headers(earlier.response.getHeaders())
+                .header(IDEMPOTENT_REPLAYED, "true")
+                .body(earlier.response.getBody());
+    }
+
+    /**
+     * Remove the saved responses that have expired
+     */
+    @Scheduled(fixedDelayString = "${invoice.idempotency.cleanup-interval:600000}")
+    public void removeExpired() {
+        int removed = transactionTemplate.execute(status -> em
+                .createNamedQuery("InvoiceIdempotentResponse.DeleteExpired")
+                .setParameter("now", new Date())
+                .executeUpdate());
+        log.fine("Removed " + removed + " expired idempotent responses");
+    }
+
+    /**
+     * Hash the operation, user and key into the ID of the saved response, so
+     * that the keys of different users and operations never collide
+     */
+    private static String id(String operation, Principal principal, String key) {
+        MessageDigest digest = sha256();
+        for (String part : new String[]{operation, principal == null ? "" : principal.getName(), key}) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * The response to a request with an idempotency key and the hash of the
+     * request body it answers
+     */
+    private static class Outcome {
+
+        private final ResponseEntity<?> response;
+
+        private final String requestHash;
+
+        private final long requestLength;
+
+        /**
+         * Whether the response was saved by an earlier request
+         */
+        private final boolean saved;
+
+        Outcome(ResponseEntity<?> response, String requestHash, long requestLength, boolean saved) {
+            this.response = response;
+            this.requestHash = requestHash;
+            this.requestLength = requestLength;
+            this.saved = saved;
+        }
+
+    }
+
+    /**
+     * Hashes a request body as it is read
+     */
+    private static class RequestDigest {
+
+        private final MessageDigest digest = sha256();
+
+        private final InputStream stream;
+
+        private long length;
+
+        RequestDigest() {
+            this.stream = null;
+        }
+
+        RequestDigest(InputStream body) {
+            this.stream = new FilterInputStream(body) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        digest.update((byte) b);
+                        length++;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int count) throws IOException {
+                    int read = super.read(bytes, offset, count);
+                    if (read > 0) {
+                        digest.update(bytes, offset, read);
+                        length += read;
+                    }
+                    return read;
+                }
+
+                @Override
+                public long skip(long count) throws IOException {
+                    // Skipped bytes must be hashed too
+                    return Math.max(read(new byte[(int) Math.min(count, 8192)]), 0);
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+
+                @Override
+                public void close() {
+                    // The request body is closed by the servlet container
+                }
+            };
+        }
+
+        /**
+         * Read the rest of the request body, so that the hash covers the
+         * whole request body
+         */
+        void readToEnd() {
+            try {
+                byte[] buffer = new byte[8192];
+                while (stream.read(buffer) >= 0) {
+                    // Hashed as it is read
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        void update(byte[] bytes) {
+            digest.update(bytes);
+            length += bytes.length;
+        }
+
+        /**
+         * Get the hash of the request body read so far
+         */
+        String hash() {
+            try {
+                return hex(((MessageDigest) digest.clone()).digest());
+            } catch (CloneNotSupportedException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        /**
+         * Check whether the request body starts with the part of an earlier
+         * request body that was read, or is the same as the whole earlier
+         * request body. A streamed request body is read as far as needed.
+         */
+        boolean matches(String requestHash, long requestLength, boolean whole) {
+            try {
+                if (stream != null) {
+                    byte[] buffer = new byte[8192];
+                    while (length < requestLength) {
+                        int read = stream.read(buffer, 0, (int) Math.min(buffer.length, requestLength - length));
+                        if (read < 0) {
+                            return false;
+                        }
+                    }
+                    if (whole && length == requestLength && stream.read() >= 0) {
+                        return false;
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return length == requestLength && hash().equals(requestHash);
+        }
+
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.io.Serializable;
+import java.util.Date;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Lob;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import lombok.Data;
+
+/**
+ * An idempotent response entity class. The response to a successful request
+ * with an Idempotency-Key is kept so that a retry of the request receives the
+ * same response instead of adding the invoices again, as long as it repeats
+ * the request body.
+ *
+ * @author William Gadney
+ */
+// JPA annotations
+@Entity
+@Table(name = "INVOICE_IDEMPOTENT_RESPONSE", indexes = {
+    @Index(name = "IDX_INVOICE_IDEMPOTENT_RESPONSE_EXPIRES", columnList = "expires")
+})
+@NamedQueries({
+    @NamedQuery(name = "InvoiceIdempotentResponse.DeleteExpired", query = "DELETE FROM InvoiceIdempotentResponse AS r WHERE r.expires < :now")
+})
+// Lombok annotations
+@Data
+public class InvoiceIdempotentResponse implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The hash of the operation, the user and the idempotency key
+     */
+    // JPA annotations
+    @Id
+    @Column(name = "INVOICE_IDEMPOTENT_RESPONSE_ID", length = 64)
+    private String id;
+
+    // JPA annotations
+    @Column(nullable = false)
+    private int status;
+
+    // JPA annotations
+    @Column(length = 2000)
+    private String location;
+
+    // JPA annotations
+    @Lob
+    private byte[] body;
+
+    /**
+     * The SHA-256 hash of the request body that was read before the response
+     * was saved
+     */
+    // JPA annotations
+    @Column(name = "REQUEST_HASH", length = 64)
+    private String requestHash;
+
+    /**
+     * The number of bytes of the request body that were hashed
+     */
+    // JPA annotations
+    @Column(name = "REQUEST_LENGTH")
+    private Long requestLength;
+
+    // JPA annotations
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(nullable = false)
+    private Date expires;
+
+    protected InvoiceIdempotentResponse() {
+    }
+
+    public InvoiceIdempotentResponse(String id, int status, String location, byte[] body,
+            String requestHash, Long requestLength, Date expires) {
+        this.id = id;
+        this.status = status;
+        this.location = location;
+        this.body = body;
+        this.requestHash = requestHash;
+        this.requestLength = requestLength;
+        this.expires = expires;
+    }
+
+}
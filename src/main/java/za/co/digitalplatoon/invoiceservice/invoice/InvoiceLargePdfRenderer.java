@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.io.OutputStream;
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JasperPrint;
+import net.sf.jasperreports.engine.fill.JRSwapFileVirtualizer;
+import net.sf.jasperreports.engine.util.JRSwapFile;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * A service that renders invoices with too many line items to hold in memory
+ * to PDF.
+ * <p>
+ * The line items are read from the database as the invoice report is filled,
+ * and filled pages are swapped to a file, so memory use stays bounded
+ * whatever the number of line items.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Service
+public class InvoiceLargePdfRenderer {
+
+    @Autowired
+    private InvoiceRepository invoiceRepository;
+
+    @Autowired
+    private InvoicePdfRenderer pdfRenderer;
+
+    @Value("${invoice.report.large.line-item-threshold:10000}")
+    private long lineItemThreshold;
+
+    @Value("${invoice.report.large.fetch-size:500}")
+    private int fetchSize;
+
+    @Value("${invoice.report.large.pages-in-memory:20}")
+    private int pagesInMemory;
+
+    @Value("${invoice.report.large.swap-directory:${java.io.tmpdir}}")
+    private String swapDirectory;
+
+    /**
+     * Check whether an invoice has too many line items to render in memory
+     *
+     * @param invoiceId The invoice ID
+     * @return True if the invoice must be rendered by this service
+     */
+    public boolean isLarge(Long invoiceId) {
+        return invoiceRepository.countLineItems(invoiceId) > lineItemThreshold;
+    }
+
+    /**
+     * Render a large invoice to a PDF document written to a stream
+     *
+     * @param invoiceId The invoice ID
+     * @param out The stream to write the PDF document to
+     * @return The version of the rendered invoice or null if the invoice does
+     * not exist
+     * @throws JRException If the invoice report could not be rendered
+     */
+    // Spring annotations
+    @Transactional(readOnly = true)
+    public Long renderPdf(Long invoiceId, OutputStream out) throws JRException {
+        Invoice invoice = invoiceRepository.find(invoiceId);
+        if (invoice == null) {
+            return null;
+        }
+        JRSwapFileVirtualizer virtualizer = new JRSwapFileVirtualizer(
+                pagesInMemory, new JRSwapFile(swapDirectory, 4096, 256), true);
+        try {
+            JasperPrint jasperPrint;
+            try (InvoiceLineItemDataSource lineItems = invoiceRepository.streamLineItems(invoiceId, fetchSize)) {
+                jasperPrint = pdfRenderer.fill(invoice, lineItems, virtualizer);
+            }
+            virtualizer.setReadOnly(true);
+            pdfRenderer.export(jasperPrint, out);
+            return invoice.getVersion();
+        } finally {
+            // Delete the swap file
+            virtualizer.cleanup();
+        }
+    }
+
+}
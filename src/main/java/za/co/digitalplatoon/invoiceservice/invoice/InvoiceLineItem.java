@@ -22,6 +22,7 @@ import com.fasterxml.jackson.annotation.JsonView;
 import io.swagger.annotations.ApiModelProperty;
 import java.io.Serializable;
 import java.math.BigDecimal;
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
@@ -29,13 +30,23 @@ import javax.persistence.ForeignKey;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
 import javax.persistence.Version;
 import javax.validation.constraints.DecimalMin;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Setter;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.DynamicUpdate;
 import za.co.digitalplatoon.invoiceservice.invoice.Invoice.View;
 
 /**
@@ -45,6 +56,21 @@ import za.co.digitalplatoon.invoiceservice.invoice.Invoice.View;
  */
 // JPA annotations
 @Entity
+@Cacheable
+@Table(indexes = {
+    @Index(name = "IDX_INVOICE_LINE_ITEM_INVOICE", columnList = "INVOICE_ID")
+})
+@NamedQueries({
+    @NamedQuery(name = "InvoiceLineItem.FindLineItemsOfInvoice", query = "SELECT li FROM InvoiceLineItem AS li "
+            + "WHERE li.invoice.id = :invoiceId "
+            + "ORDER BY li.id")
+    ,@NamedQuery(name = "InvoiceLineItem.CountLineItemsOfInvoice", query = "SELECT COUNT(li) FROM InvoiceLineItem AS li "
+            + "WHERE li.invoice.id = :invoiceId")
+})
+// Hibernate annotations
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+// Only update the changed columns
+@DynamicUpdate
 // Jackson annotations
 @JsonPropertyOrder({
     "id",
@@ -62,7 +88,8 @@ public class InvoiceLineItem implements Serializable {
 
     // JPA annotations
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "INVOICE_LINE_ITEM_SEQ")
+    @SequenceGenerator(name = "INVOICE_LINE_ITEM_SEQ", sequenceName = "INVOICE_LINE_ITEM_SEQ", allocationSize = 50)
     @Column(name = "INVOICE_LINE_ITEM_ID")
     // Jackson annotations
     @JsonView({
@@ -175,8 +202,33 @@ public class InvoiceLineItem implements Serializable {
             readOnly = true,
             position = 5
     )
-    public BigDecimal getLineItemTotal() {
-        return unitPrice.multiply(new BigDecimal(quantity));
+    // Lombok annotations
+    @Setter(AccessLevel.NONE)
+    private BigDecimal lineItemTotal;
+
+    public void setQuantity(Long quantity) {
+        this.quantity = quantity;
+        calculateLineItemTotal();
+    }
+
+    public void setUnitPrice(BigDecimal unitPrice) {
+        this.unitPrice = unitPrice;
+        calculateLineItemTotal();
+    }
+
+    /**
+     * Calculate the line item total and update the totals of the invoice
+     */
+    private void calculateLineItemTotal() {
+        BigDecimal previousLineItemTotal = lineItemTotal;
+        if (quantity == null || unitPrice == null) {
+            lineItemTotal = null;
+        } else {
+            lineItemTotal = unitPrice.multiply(BigDecimal.valueOf(quantity));
+        }
+        if (invoice != null) {
+            invoice.lineItemTotalChanged(this, previousLineItemTotal);
+        }
     }
     
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JRField;
+import net.sf.jasperreports.engine.data.JRAbstractBeanDataSource;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+
+/**
+ * A report data source that reads the line items of an invoice from a
+ * database cursor as the report is filled.
+ * <p>
+ * Each line item is detached from the persistence context once the report
+ * has moved past it, so memory use does not grow with the number of line
+ * items. The data source must be used and closed within the transaction that
+ * created it.
+ *
+ * @author William Gadney
+ */
+public class InvoiceLineItemDataSource extends JRAbstractBeanDataSource implements AutoCloseable {
+
+    private final Session session;
+
+    private final ScrollableResults results;
+
+    private InvoiceLineItem current;
+
+    InvoiceLineItemDataSource(Session session, ScrollableResults results) {
+        super(true);
+        this.session = session;
+        this.results = results;
+    }
+
+    @Override
+    public boolean next() throws JRException {
+        if (current != null) {
+            session.detach(current);
+            current = null;
+        }
+        if (results.next()) {
+            current = (InvoiceLineItem) results.get(0);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Object getFieldValue(JRField field) throws JRException {
+        return getFieldValue(current, field);
+    }
+
+    /**
+     * A database cursor can only be read once
+     *
+     * @throws JRException Always
+     */
+    @Override
+    public void moveFirst() throws JRException {
+        throw new JRException("The line items of a large invoice can only be read once");
+    }
+
+    @Override
+    public void close() {
+        results.close();
+    }
+
+}
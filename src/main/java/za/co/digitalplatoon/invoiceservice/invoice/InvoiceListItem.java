@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import io.swagger.annotations.ApiModelProperty;
+import java.math.BigDecimal;
+import java.util.Date;
+import lombok.Getter;
+
+/**
+ * A read only row of the invoice list, selected directly from the database
+ * without loading the invoice entity
+ *
+ * @author William Gadney
+ */
+// Jackson annotations
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({
+    "id",
+    "client",
+    "invoiceDate",
+    "subTotal",
+    "vat",
+    "total"
+})
+// Lombok annotations
+@Getter
+public class InvoiceListItem {
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The unique ID of the invoice.",
+            example = "1",
+            readOnly = true,
+            position = 1
+    )
+    private final Long id;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The invoice client.",
+            example = "ABC Transport",
+            readOnly = true,
+            position = 2
+    )
+    private final String client;
+
+    // Jackson annotations
+    @JsonFormat(pattern = "yyyy-MM-dd")
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The invoice date.",
+            example = "2018-04-17",
+            readOnly = true,
+            position = 3
+    )
+    private final Date invoiceDate;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The invoice sub total excluding VAT. Omitted unless the totals are requested.",
+            example = "5.97",
+            readOnly = true,
+            position = 4
+    )
+    private final BigDecimal subTotal;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The invoice VAT amount. Omitted unless the totals are requested.",
+            example = "0.90",
+            readOnly = true,
+            position = 5
+    )
+    private final BigDecimal vat;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The invoice total including VAT. Omitted unless the totals are requested.",
+            example = "6.87",
+            readOnly = true,
+            position = 6
+    )
+    private final BigDecimal total;
+
+    // The constructors are public for the JPQL constructor expressions
+    public InvoiceListItem(Long id, String client, Date invoiceDate) {
+        this(id, client, invoiceDate, null, null, null);
+    }
+
+    public InvoiceListItem(Long id, String client, Date invoiceDate,
+            BigDecimal subTotal, BigDecimal vat, BigDecimal total) {
+        this.id = id;
+        this.client = client;
+        this.invoiceDate = invoiceDate;
+        this.subTotal = subTotal;
+        this.vat = vat;
+        this.total = total;
+    }
+
+}
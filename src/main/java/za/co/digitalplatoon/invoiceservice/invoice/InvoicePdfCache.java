@@ -0,0 +1,488 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.PostConstruct;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.java.Log;
+import net.sf.jasperreports.engine.JRException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * A cache of rendered invoice PDF files.
+ * <p>
+ * A rendered invoice never changes for a given invoice version and report
+ * template, so the PDF files are cached by invoice ID, invoice version and
+ * template hash and never need to be invalidated. The cache has two tiers: a
+ * memory tier bounded by the total size of the cached PDF files, and an
+ * optional disk tier that survives restarts. Both tiers evict the least
+ * recently used PDF files first. PDF files in the disk tier are streamed to
+ * the client without loading them into memory.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Component
+// Lombok annotations
+@Log
+public class InvoicePdfCache {
+
+    private static final Pattern FILE_NAME = Pattern.compile("invoice-(\\d+)-(\\d+)-([0-9a-f]+)\\.pdf");
+
+    private final InvoiceReportTemplates templates;
+
+    private final long maxMemorySize;
+
+    private final long maxDiskSize;
+
+    private final Path directory;
+
+    private final Map<Key, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long memorySize;
+
+    private final Map<Key, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long diskSize;
+
+    private final Counter memoryHits;
+
+    private final Counter memoryMisses;
+
+    private final Counter memoryEvictions;
+
+    private final Counter diskHits;
+
+    private final Counter diskMisses;
+
+    private final Counter diskEvictions;
+
+    public InvoicePdfCache(
+            InvoiceReportTemplates templates,
+            MeterRegistry meterRegistry,
+            @Value("${invoice.pdf-cache.memory-size:67108864}") long maxMemorySize,
+            @Value("${invoice.pdf-cache.directory:}") String directory,
+            @Value("${invoice.pdf-cache.disk-size:1073741824}") long maxDiskSize) {
+        this.templates = templates;
+        this.maxMemorySize = maxMemorySize;
+        this.maxDiskSize = maxDiskSize;
+        this.directory = directory.isEmpty() ? null : Paths.get(directory);
+        this.memoryHits = gets(meterRegistry, "memory", "hit");
+        this.memoryMisses = gets(meterRegistry, "memory", "miss");
+        this.memoryEvictions = evictions(meterRegistry, "memory");
+        this.diskHits = gets(meterRegistry, "disk", "hit");
+        this.diskMisses = gets(meterRegistry, "disk", "miss");
+        this.diskEvictions = evictions(meterRegistry, "disk");
+        Gauge.builder("invoice.pdf.cache.size", this, cache -> cache.getMemorySize())
+                .description("The total size of the cached invoice PDF files")
+                .baseUnit("bytes")
+                .tag("tier", "memory")
+                .register(meterRegistry);
+        Gauge.builder("invoice.pdf.cache.size", this, cache -> cache.getDiskSize())
+                .description("The total size of the cached invoice PDF files")
+                .baseUnit("bytes")
+                .tag("tier", "disk")
+                .register(meterRegistry);
+    }
+
+    private static Counter gets(MeterRegistry meterRegistry, String tier, String result) {
+        return Counter.builder("invoice.pdf.cache.gets")
+                .description("The number of invoice PDF cache lookups")
+                .tag("tier", tier)
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private static Counter evictions(MeterRegistry meterRegistry, String tier) {
+        return Counter.builder("invoice.pdf.cache.evictions")
+                .description("The number of invoice PDF files evicted from the cache")
+                .tag("tier", tier)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Index the PDF files left in the disk tier by a previous run, oldest
+     * first
+     */
+    @PostConstruct
+    public void loadDiskTier() throws IOException {
+        if (directory == null) {
+            return;
+        }
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "invoice-*.pdf")) {
+            stream.forEach(files::add);
+        }
+        files.sort(Comparator.comparingLong(file -> file.toFile().lastModified()));
+        synchronized (disk) {
+            for (Path file : files) {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (matcher.matches()) {
+                    Key key = new Key(Long.valueOf(matcher.group(1)), Long.valueOf(matcher.group(2)), matcher.group(3));
+                    long size = Files.size(file);
+                    disk.put(key, size);
+                    diskSize += size;
+                }
+            }
+            evictFromDisk();
+        }
+    }
+
+    /**
+     * Get a cached invoice PDF file rendered with the current report templates
+     *
+     * @param invoiceId The invoice ID
+     * @param version The invoice version
+     * @return The cached PDF file or null if the PDF file is not cached
+     * @throws JRException If the report templates could not be loaded
+     */
+    public CachedPdf get(Long invoiceId, Long version) throws JRException {
+        Key key = new Key(invoiceId, version, templates.getTemplateHash());
+        byte[] pdf;
+        synchronized (memory) {
+            pdf = memory.get(key);
+        }
+        if (pdf != null) {
+            memoryHits.increment();
+            return new MemoryPdf(pdf);
+        }
+        memoryMisses.increment();
+        if (directory == null) {
+            return null;
+        }
+        synchronized (disk) {
+            Long size = disk.get(key);
+            if (size != null) {
+                Path file = file(key);
+                if (Files.isReadable(file)) {
+                    diskHits.increment();
+                    return new DiskPdf(file, size);
+                }
+                log.warning("Unable to read the cached invoice PDF " + file);
+                disk.remove(key);
+                diskSize -= size;
+            }
+        }
+        diskMisses.increment();
+        return null;
+    }
+
+    /**
+     * Cache an invoice PDF file rendered with the current report templates
+     *
+     * @param invoiceId The invoice ID
+     * @param version The invoice version
+     * @param pdf The PDF file bytes
+     * @return The cached PDF file
+     * @throws JRException If the report templates could not be loaded
+     */
+    public CachedPdf put(Long invoiceId, Long version, byte[] pdf) throws JRException {
+        Key key = new Key(invoiceId, version, templates.getTemplateHash());
+        if (pdf.length <= maxMemorySize) {
+            synchronized (memory) {
+                byte[] previous = memory.put(key, pdf);
+                memorySize += pdf.length - (previous == null ? 0 : previous.length);
+                evictFromMemory();
+            }
+        }
+        if (directory != null && pdf.length <= maxDiskSize) {
+            writeToDisk(key, pdf);
+        }
+        return new MemoryPdf(pdf);
+    }
+
+    /**
+     * Wrap a stream that an invoice PDF file rendered with the current report
+     * templates is written to, so that the PDF file is also written to the
+     * disk tier without holding it in memory. The PDF file is only cached
+     * once it is committed.
+     *
+     * @param invoiceId The invoice ID
+     * @param version The invoice version
+     * @param out The stream the PDF file is written to
+     * @return The stream to write the PDF file to
+     * @throws JRException If the report templates could not be loaded
+     */
+    public CachingOutputStream cachingOutput(Long invoiceId, Long version, OutputStream out) throws JRException {
+        return new CachingOutputStream(new Key(invoiceId, version, templates.getTemplateHash()), out);
+    }
+
+    private void writeToDisk(Key key, byte[] pdf) {
+        try (CachingOutputStream out = new CachingOutputStream(key, null)) {
+            out.write(pdf);
+            out.commit();
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Unable to write the cached invoice PDF " + file(key), ex);
+        }
+    }
+
+    private void addToDisk(Key key, long size) {
+        synchronized (disk) {
+            Long previous = disk.put(key, size);
+            diskSize += size - (previous == null ? 0 : previous);
+            evictFromDisk();
+        }
+    }
+
+    private void evictFromMemory() {
+        Iterator<Map.Entry<Key, byte[]>> iterator = memory.entrySet().iterator();
+        while (memorySize > maxMemorySize && iterator.hasNext()) {
+            memorySize -= iterator.next().getValue().length;
+            iterator.remove();
+            memoryEvictions.increment();
+        }
+    }
+
+    private void evictFromDisk() {
+        Iterator<Map.Entry<Key, Long>> iterator = disk.entrySet().iterator();
+        while (diskSize > maxDiskSize && iterator.hasNext()) {
+            Map.Entry<Key, Long> entry = iterator.next();
+            try {
+                Files.deleteIfExists(file(entry.getKey()));
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Unable to delete the cached invoice PDF " + file(entry.getKey()), ex);
+            }
+            diskSize -= entry.getValue();
+            iterator.remove();
+            diskEvictions.increment();
+        }
+    }
+
+    private Path file(Key key) {
+        return directory.resolve("invoice-" + key.invoiceId + "-" + key.version + "-" + key.templateHash + ".pdf");
+    }
+
+    long getMemorySize() {
+        synchronized (memory) {
+            return memorySize;
+        }
+    }
+
+    long getDiskSize() {
+        synchronized (disk) {
+            return diskSize;
+        }
+    }
+
+    /**
+     * A cached invoice PDF file that can be written to a response
+     */
+    public interface CachedPdf {
+
+        /**
+         * Get the size of the PDF file
+         *
+         * @return The size in bytes
+         */
+        long getSize();
+
+        /**
+         * Write the PDF file
+         *
+         * @param out The stream to write to
+         * @throws IOException If the PDF file could not be written
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * A stream that writes an invoice PDF file through to another stream and
+     * to a temporary file in the disk tier. Closing the stream deletes the
+     * temporary file unless the PDF file was committed, but does not close
+     * the other stream. The cache is optional, so a failure to write the
+     * temporary file stops caching the PDF file but does not fail the other
+     * stream.
+     */
+    public final class CachingOutputStream extends OutputStream {
+
+        private final Key key;
+
+        private final OutputStream out;
+
+        private final Path temp;
+
+        private OutputStream fileOut;
+
+        private long size;
+
+        private boolean committed;
+
+        private CachingOutputStream(Key key, OutputStream out) {
+            this.key = key;
+            this.out = out;
+            Path tempFile = null;
+            OutputStream tempOut = null;
+            if (directory != null) {
+                try {
+                    tempFile = Files.createTempFile(directory, "invoice-", ".tmp");
+                    tempOut = new BufferedOutputStream(Files.newOutputStream(tempFile));
+                } catch (IOException ex) {
+                    log.log(Level.WARNING, "Unable to create a cached invoice PDF in " + directory, ex);
+                }
+            }
+            this.temp = tempFile;
+            this.fileOut = tempOut;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (out != null) {
+                out.write(b, off, len);
+            }
+            if (fileOut != null) {
+                try {
+                    fileOut.write(b, off, len);
+                } catch (IOException ex) {
+                    discard(ex);
+                }
+            }
+            size += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        /**
+         * Add the PDF file written so far to the disk tier, unless it could
+         * not be written
+         */
+        public void commit() {
+            if (fileOut == null || committed || size > maxDiskSize) {
+                return;
+            }
+            try {
+                fileOut.close();
+                // Move the complete file into place so that readers never see a
+                // partially written PDF file
+                Files.move(temp, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                discard(ex);
+                return;
+            }
+            committed = true;
+            addToDisk(key, size);
+        }
+
+        @Override
+        public void close() {
+            if (fileOut != null && !committed) {
+                try {
+                    fileOut.close();
+                    Files.deleteIfExists(temp);
+                } catch (IOException ex) {
+                    log.log(Level.WARNING, "Unable to delete the cached invoice PDF " + temp, ex);
+                }
+            }
+        }
+
+        /**
+         * Stop writing the temporary file and delete it
+         */
+        private void discard(IOException ex) {
+            log.log(Level.WARNING, "Unable to write the cached invoice PDF " + temp, ex);
+            close();
+            fileOut = null;
+        }
+    }
+
+    private static final class MemoryPdf implements CachedPdf {
+
+        private final byte[] pdf;
+
+        private MemoryPdf(byte[] pdf) {
+            this.pdf = pdf;
+        }
+
+        @Override
+        public long getSize() {
+            return pdf.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(pdf);
+        }
+    }
+
+    private static final class DiskPdf implements CachedPdf {
+
+        private final Path file;
+
+        private final long size;
+
+        private DiskPdf(Path file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        @Override
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            // The file is only opened once the response is written, so that a
+            // response that is never written does not keep the file open. A
+            // file evicted in the meantime fails the response.
+            Files.copy(file, out);
+        }
+    }
+
+    // Lombok annotations
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
+    @EqualsAndHashCode
+    private static final class Key {
+
+        private final Long invoiceId;
+        private final Long version;
+        private final String templateHash;
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import lombok.extern.java.Log;
+import net.sf.jasperreports.engine.JRException;
+import org.hibernate.LockOptions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * A transactional outbox of the invoice versions whose PDF files must be
+ * pre-rendered into the invoice PDF cache.
+ * <p>
+ * An entry is saved in the same transaction as the invoice version, so an
+ * entry exists exactly when the invoice version was committed. The outbox is
+ * polled when this instance commits an entry, and otherwise every recovery
+ * interval to find the entries left by other instances or by a restart. The
+ * PDF files are rendered on the render pool in batches, one batch at a time,
+ * so that a backlog does not hold up the other scheduled tasks or take over
+ * the render pool from the PDF requests.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Service
+// Lombok annotations
+@Log
+public class InvoicePdfOutbox {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    private final InvoiceRepository invoiceRepository;
+
+    private final InvoicePdfRenderer pdfRenderer;
+
+    private final InvoiceLargePdfRenderer largePdfRenderer;
+
+    private final InvoicePdfCache pdfCache;
+
+    private final InvoicePdfRenderExecutor renderExecutor;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final long recoveryInterval;
+
+    private final int batchSize;
+
+    private final AtomicBoolean pending = new AtomicBoolean();
+
+    private final AtomicLong backlog = new AtomicLong();
+
+    private final Timer lag;
+
+    private volatile long lastPoll = System.currentTimeMillis();
+
+    private volatile CompletableFuture<Integer> batch = CompletableFuture.completedFuture(0);
+
+    public InvoicePdfOutbox(
+            InvoiceRepository invoiceRepository,
+            InvoicePdfRenderer pdfRenderer,
+            InvoiceLargePdfRenderer largePdfRenderer,
+            InvoicePdfCache pdfCache,
+            InvoicePdfRenderExecutor renderExecutor,
+            PlatformTransactionManager transactionManager,
+            MeterRegistry meterRegistry,
+            @Value("${invoice.pdf-outbox.recovery-interval:300000}") long recoveryInterval,
+            @Value("${invoice.pdf-outbox.batch-size:10}") int batchSize) {
+        this.invoiceRepository = invoiceRepository;
+        this.pdfRenderer = pdfRenderer;
+        this.largePdfRenderer = largePdfRenderer;
+        this.pdfCache = pdfCache;
+        this.renderExecutor = renderExecutor;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.recoveryInterval = recoveryInterval;
+        this.batchSize = batchSize;
+        this.lag = Timer.builder("invoice.pdf.outbox.lag")
+                .description("The time from saving an invoice version until its PDF file was pre-rendered")
+                .register(meterRegistry);
+        Gauge.builder("invoice.pdf.outbox.backlog", backlog, AtomicLong::get)
+                .description("The number of invoice versions waiting for their PDF file to be pre-rendered")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Add an invoice version to the outbox. Must be called within the
+     * transaction that saves the invoice version. The PDF file is rendered
+     * once the transaction commits.
+     *
+     * @param invoice The saved invoice
+     */
+    public void add(Invoice invoice) {
+        em.persist(new InvoicePdfOutboxEntry(invoice.getId(), invoice.getVersion()));
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                backlog.incrementAndGet();
+                pending.set(true);
+            }
+        });
+    }
+
+    /**
+     * Find the entries left in the outbox when the application starts
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void recover() {
+        long count = transactionTemplate.execute(status -> countEntries());
+        backlog.set(count);
+        pending.compareAndSet(false, count > 0);
+    }
+
+    /**
+     * Start rendering a batch of the PDF files of the invoice versions in the
+     * outbox on the render pool, unless a batch is still being rendered
+     *
+     * @return The batch, which completes with the number of entries rendered
+     */
+    @Scheduled(fixedDelayString = "${invoice.pdf-outbox.poll-interval:1000}")
+    public CompletableFuture<Integer> renderPending() {
+        long now = System.currentTimeMillis();
+        if (!batch.isDone() || (!pending.getAndSet(false) && now - lastPoll < recoveryInterval)) {
+            return batch;
+        }
+        lastPoll = now;
+        try {
+            batch = renderExecutor.submit(this::renderBatch);
+        } catch (RejectedExecutionException ex) {
+            // The render pool is busy with PDF requests, try again on the next poll
+            pending.set(true);
+        }
+        return batch;
+    }
+
+    /**
+     * Render the PDF files of a batch of invoice versions in the outbox,
+     * oldest first
+     *
+     * @return The number of entries rendered
+     */
+    private int renderBatch() {
+        int rendered = 0;
+        try {
+            while (rendered < batchSize && transactionTemplate.execute(status -> renderNext())) {
+                rendered++;
+            }
+            if (rendered == batchSize) {
+                // Render the next batch on the next poll
+                pending.set(true);
+            }
+            backlog.set(transactionTemplate.execute(status -> countEntries()));
+        } catch (RuntimeException ex) {
+            log.log(Level.WARNING, "Unable to read the invoice PDF outbox", ex);
+        }
+        return rendered;
+    }
+
+    /**
+     * Render and remove the oldest entry in the outbox
+     *
+     * @return Whether an entry was found
+     */
+    private boolean renderNext() {
+        List<InvoicePdfOutboxEntry> entries = em
+                .createNamedQuery("InvoicePdfOutboxEntry.FindOldestEntries", InvoicePdfOutboxEntry.class)
+                .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+                // Skip the entries another instance is rendering where the database supports it
+                .setHint("javax.persistence.lock.timeout", LockOptions.SKIP_LOCKED)
+                .setMaxResults(1)
+                .getResultList();
+        if (entries.isEmpty()) {
+            return false;
+        }
+        InvoicePdfOutboxEntry entry = entries.get(0);
+        em.remove(entry);
+        // A failed render is not retried, the PDF file is rendered on request instead
+        try {
+            render(entry);
+        } catch (JRException | RuntimeException ex) {
+            log.log(Level.WARNING, "Unable to pre-render the PDF of invoice " + entry.getInvoiceId(), ex);
+        }
+        return true;
+    }
+
+    private void render(InvoicePdfOutboxEntry entry) throws JRException {
+        Long invoiceId = entry.getInvoiceId();
+        // Newer invoice versions have entries of their own, and the PDF files
+        // of large invoices are streamed on request rather than cached
+        if (!entry.getInvoiceVersion().equals(invoiceRepository.findVersion(invoiceId))
+                || largePdfRenderer.isLarge(invoiceId)) {
+            return;
+        }
+        Invoice invoice = invoiceRepository.findWithLineItems(invoiceId);
+        pdfCache.put(invoiceId, invoice.getVersion(), pdfRenderer.renderPdf(invoice));
+        lag.record(System.currentTimeMillis() - entry.getCreated().getTime(), TimeUnit.MILLISECONDS);
+    }
+
+    private long countEntries() {
+        return em.createNamedQuery("InvoicePdfOutboxEntry.CountEntries", Long.class).getSingleResult();
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.io.Serializable;
+import java.util.Date;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import lombok.Data;
+
+/**
+ * An invoice PDF outbox entity class. An entry is saved in the same
+ * transaction as a new invoice version and removed once the PDF file of that
+ * version has been rendered.
+ *
+ * @author William Gadney
+ */
+// JPA annotations
+@Entity
+@Table(name = "INVOICE_PDF_OUTBOX")
+@NamedQueries({
+    @NamedQuery(name = "InvoicePdfOutboxEntry.FindOldestEntries", query = "SELECT e FROM InvoicePdfOutboxEntry AS e ORDER BY e.id")
+    ,@NamedQuery(name = "InvoicePdfOutboxEntry.CountEntries", query = "SELECT COUNT(e) FROM InvoicePdfOutboxEntry AS e")
+})
+// Lombok annotations
+@Data
+public class InvoicePdfOutboxEntry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // JPA annotations
+    @Id
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "INVOICE_PDF_OUTBOX_SEQ")
+    @SequenceGenerator(name = "INVOICE_PDF_OUTBOX_SEQ", sequenceName = "INVOICE_PDF_OUTBOX_SEQ", allocationSize = 50)
+    @Column(name = "INVOICE_PDF_OUTBOX_ID")
+    private Long id;
+
+    // JPA annotations
+    @Column(name = "INVOICE_ID", nullable = false)
+    private Long invoiceId;
+
+    // JPA annotations
+    @Column(nullable = false)
+    private Long invoiceVersion;
+
+    // JPA annotations
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(nullable = false)
+    private Date created;
+
+    protected InvoicePdfOutboxEntry() {
+    }
+
+    public InvoicePdfOutboxEntry(Long invoiceId, Long invoiceVersion) {
+        this.invoiceId = invoiceId;
+        this.invoiceVersion = invoiceVersion;
+        this.created = new Date();
+    }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+/**
+ * A bounded worker pool that renders invoice PDF files for the interactive
+ * PDF requests.
+ * <p>
+ * Filling and exporting a report is CPU bound, so the renders run on a small
+ * pool of their own instead of the servlet threads that serve the JSON
+ * requests. Renders are rejected rather than queued without limit when the
+ * pool falls behind.
+ * <p>
+ * The PDF files that are streamed to the client are exported on a render
+ * thread as well, which is reserved before the response is returned, so that
+ * a streamed render can still be rejected with a 503 response.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Component
+public class InvoicePdfRenderExecutor {
+
+    private final ThreadPoolTaskExecutor executor;
+
+    private final Counter rejected;
+
+    private final long streamTimeout;
+
+    public InvoicePdfRenderExecutor(
+            MeterRegistry meterRegistry,
+            @Value("${invoice.report.render.pool-size:4}") int poolSize,
+            @Value("${invoice.report.render.queue-capacity:20}") int queueCapacity,
+            @Value("${invoice.report.render.stream-timeout:30000}") long streamTimeout) {
+        this.streamTimeout = streamTimeout;
+        this.executor = new ThreadPoolTaskExecutor();
+        this.executor.setThreadNamePrefix("invoice-pdf-render-");
+        this.executor.setCorePoolSize(poolSize);
+        this.executor.setMaxPoolSize(poolSize);
+        this.executor.setQueueCapacity(queueCapacity);
+        this.executor.initialize();
+        this.rejected = Counter.builder("invoice.pdf.render.rejected")
+                .description("The number of invoice PDF renders rejected because the render queue was full")
+                .register(meterRegistry);
+        Gauge.builder("invoice.pdf.render.queued", this, InvoicePdfRenderExecutor::getQueued)
+                .description("The number of invoice PDF renders waiting for a render thread")
+                .register(meterRegistry);
+        Gauge.builder("invoice.pdf.render.active", this, InvoicePdfRenderExecutor::getActive)
+                .description("The number of invoice PDF renders in progress")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Submit a render to the render pool
+     *
+     * @param <T> The type of the render result
+     * @param render The render
+     * @return A future that completes with the render result, or exceptionally
+     * if the render failed
+     * @throws RejectedExecutionException If the render queue is full
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> render) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(render.call());
+                } catch (Exception | Error ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            rejected.increment();
+            throw ex;
+        }
+        return future;
+    }
+
+    /**
+     * Submit a render that writes to the response to the render pool. The
+     * render thread waits until the response body is written, and gives up if
+     * that does not happen within the stream timeout.
+     *
+     * @param render The render, which is run on a render thread
+     * @return The response body, which waits for the render to complete
+     * @throws RejectedExecutionException If the render queue is full
+     */
+    public StreamingResponseBody stream(StreamingResponseBody render) {
+        CompletableFuture<OutputStream> output = new CompletableFuture<>();
+        CompletableFuture<Void> rendered = submit(() -> {
+            render.writeTo(output.get(streamTimeout, TimeUnit.MILLISECONDS));
+            return null;
+        });
+        return out -> {
+            output.complete(out);
+            try {
+                rendered.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the render");
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            }
+        };
+    }
+
+    /**
+     * Get the number of renders waiting for a render thread
+     *
+     * @return The render queue depth
+     */
+    public int getQueued() {
+        return executor.getThreadPoolExecutor().getQueue().size();
+    }
+
+    /**
+     * Get the number of renders in progress
+     *
+     * @return The number of active renders
+     */
+    public int getActive() {
+        return executor.getActiveCount();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+}
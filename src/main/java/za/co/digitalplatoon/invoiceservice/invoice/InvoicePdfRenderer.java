@@ -0,0 +1,199 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import net.sf.jasperreports.engine.JRDataSource;
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JRParameter;
+import net.sf.jasperreports.engine.JRVirtualizer;
+import net.sf.jasperreports.engine.JasperFillManager;
+import net.sf.jasperreports.engine.JasperPrint;
+import net.sf.jasperreports.engine.data.JRBeanCollectionDataSource;
+import net.sf.jasperreports.engine.export.JRPdfExporter;
+import net.sf.jasperreports.export.SimpleExporterInput;
+import net.sf.jasperreports.export.SimpleOutputStreamExporterOutput;
+import org.springframework.stereotype.Service;
+
+/**
+ * A service that renders invoices to PDF using the shared invoice report
+ * templates
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Service
+public class InvoicePdfRenderer {
+
+    private final InvoiceReportTemplates templates;
+
+    private final Timer fillTimer;
+
+    private final Timer exportTimer;
+
+    private final DistributionSummary pdfSize;
+
+    public InvoicePdfRenderer(InvoiceReportTemplates templates, MeterRegistry meterRegistry) {
+        this.templates = templates;
+        this.fillTimer = Timer
+                .builder("invoice.report.fill")
+                .description("The time taken to fill the invoice report")
+                .register(meterRegistry);
+        this.exportTimer = Timer
+                .builder("invoice.report.export")
+                .description("The time taken to export the invoice report to PDF")
+                .register(meterRegistry);
+        this.pdfSize = DistributionSummary
+                .builder("invoice.report.pdf.size")
+                .description("The size of the exported invoice PDF documents")
+                .baseUnit("bytes")
+                .minimumExpectedValue(1024L)
+                .maximumExpectedValue(64L * 1024 * 1024)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Render an invoice to a PDF document
+     *
+     * @param invoice The invoice with its line items
+     * @return The PDF document bytes
+     * @throws JRException If the invoice report could not be rendered
+     */
+    public byte[] renderPdf(Invoice invoice) throws JRException {
+        return export(fill(invoice));
+    }
+
+    /**
+     * Fill the invoice report for an invoice
+     *
+     * @param invoice The invoice with its line items
+     * @return The filled invoice report
+     * @throws JRException If the invoice report could not be filled
+     */
+    public JasperPrint fill(Invoice invoice) throws JRException {
+        return fill(invoice, templates.createParameters());
+    }
+
+    /**
+     * Fill the invoice report for a large invoice, reading its line items from
+     * a data source instead of the loaded line items and letting a
+     * virtualizer move filled pages out of memory
+     *
+     * @param invoice The invoice without its line items
+     * @param lineItems The line items of the invoice
+     * @param virtualizer The virtualizer, which must be cleaned up once the
+     * filled report has been exported
+     * @return The filled invoice report
+     * @throws JRException If the invoice report could not be filled
+     */
+    public JasperPrint fill(Invoice invoice, JRDataSource lineItems, JRVirtualizer virtualizer) throws JRException {
+        Map<String, Object> parameters = templates.createParameters();
+        parameters.put(InvoiceReportTemplates.LINE_ITEM_DATA_SOURCE_PARAMETER, lineItems);
+        parameters.put(JRParameter.REPORT_VIRTUALIZER, virtualizer);
+        return fill(invoice, parameters);
+    }
+
+    private JasperPrint fill(Invoice invoice, Map<String, Object> parameters) throws JRException {
+        Timer.Sample sample = Timer.start(Clock.SYSTEM);
+        try {
+            return JasperFillManager.fillReport(
+                    templates.getInvoiceReport(),
+                    parameters,
+                    new JRBeanCollectionDataSource(Collections.singletonList(invoice))
+            );
+        } finally {
+            sample.stop(fillTimer);
+        }
+    }
+
+    /**
+     * Render an invoice to a PDF document written to a stream
+     *
+     * @param invoice The invoice with its line items
+     * @param out The stream to write the PDF document to
+     * @throws JRException If the invoice report could not be rendered
+     */
+    public void renderPdf(Invoice invoice, OutputStream out) throws JRException {
+        export(fill(invoice), out);
+    }
+
+    /**
+     * Export a filled invoice report to a PDF document
+     *
+     * @param jasperPrint The filled invoice report
+     * @return The PDF document bytes
+     * @throws JRException If the invoice report could not be exported
+     */
+    public byte[] export(JasperPrint jasperPrint) throws JRException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        export(jasperPrint, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Export a filled invoice report to a PDF document written to a stream.
+     * The PDF document is written as it is exported, without holding the
+     * whole document in memory.
+     *
+     * @param jasperPrint The filled invoice report
+     * @param out The stream to write the PDF document to
+     * @throws JRException If the invoice report could not be exported
+     */
+    public void export(JasperPrint jasperPrint, OutputStream out) throws JRException {
+        Timer.Sample sample = Timer.start(Clock.SYSTEM);
+        CountingOutputStream countingOut = new CountingOutputStream(out);
+        try {
+            JRPdfExporter exporter = new JRPdfExporter();
+            exporter.setExporterInput(new SimpleExporterInput(jasperPrint));
+            exporter.setExporterOutput(new SimpleOutputStreamExporterOutput(countingOut));
+            exporter.exportReport();
+            pdfSize.record(countingOut.count);
+        } finally {
+            sample.stop(exportTimer);
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import io.swagger.annotations.ApiModelProperty;
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.http.MediaType;
+
+/**
+ * The progress of an asynchronous job rendering a batch of invoice PDF files
+ *
+ * @author William Gadney
+ */
+// Jackson annotations
+@JsonPropertyOrder({
+    "id",
+    "format",
+    "state",
+    "total",
+    "rendered",
+    "failed",
+    "errors",
+    "created",
+    "completed"
+})
+// Lombok annotations
+@Getter
+public class InvoiceRenderJob {
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The unique ID of the render job.",
+            example = "0b0f7a3c-6f53-4b8e-a4a7-5f8e0d3c2b1a",
+            readOnly = true,
+            position = 1
+    )
+    private final String id = UUID.randomUUID().toString();
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The format of the rendered result.",
+            example = "ZIP",
+            readOnly = true,
+            position = 2
+    )
+    private final Format format;
+
+    // Lombok annotations
+    @Setter(AccessLevel.PACKAGE)
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The state of the render job.",
+            example = "RUNNING",
+            readOnly = true,
+            position = 3
+    )
+    private volatile State state = State.QUEUED;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The number of invoices selected for rendering.",
+            example = "1000",
+            readOnly = true,
+            position = 4
+    )
+    private final int total;
+
+    // Lombok annotations
+    @Getter(AccessLevel.NONE)
+    private final AtomicInteger rendered = new AtomicInteger();
+
+    // Lombok annotations
+    @Getter(AccessLevel.NONE)
+    private final AtomicInteger failed = new AtomicInteger();
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The reasons why invoices could not be rendered.",
+            readOnly = true,
+            position = 7
+    )
+    private final List<String> errors = new CopyOnWriteArrayList<>();
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The time the render job was created.",
+            readOnly = true,
+            position = 8
+    )
+    private final Date created = new Date();
+
+    // Lombok annotations
+    @Setter(AccessLevel.PACKAGE)
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The time the render job completed.",
+            readOnly = true,
+            position = 9
+    )
+    private volatile Date completed;
+
+    // Lombok annotations
+    @Getter(AccessLevel.PACKAGE)
+    private final List<Long> invoiceIds;
+
+    /**
+     * The user who submitted the render job, the only user who may view it
+     */
+    // Lombok annotations
+    @Getter(AccessLevel.PACKAGE)
+    private final String createdBy;
+
+    // Lombok annotations
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.PACKAGE)
+    private volatile File resultFile;
+
+    InvoiceRenderJob(Format format, List<Long> invoiceIds, String createdBy) {
+        this.format = format;
+        this.invoiceIds = invoiceIds;
+        this.createdBy = createdBy;
+        this.total = invoiceIds.size();
+    }
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The number of invoices rendered so far.",
+            example = "250",
+            readOnly = true,
+            position = 5
+    )
+    public int getRendered() {
+        return rendered.get();
+    }
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The number of invoices that could not be rendered.",
+            example = "0",
+            readOnly = true,
+            position = 6
+    )
+    public int getFailed() {
+        return failed.get();
+    }
+
+    void addRendered() {
+        rendered.incrementAndGet();
+    }
+
+    void addFailed(Long invoiceId, String reason) {
+        failed.incrementAndGet();
+        errors.add("Invoice " + invoiceId + ": " + reason);
+    }
+
+    public enum State {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+
+    public enum Format {
+
+        /**
+         * A ZIP archive containing one PDF file per invoice
+         */
+        ZIP("zip", MediaType.valueOf("application/zip")),
+        /**
+         * A single PDF file containing all the invoices
+         */
+        PDF("pdf", MediaType.APPLICATION_PDF);
+
+        private final String extension;
+        private final MediaType mediaType;
+
+        Format(String extension, MediaType mediaType) {
+            this.extension = extension;
+            this.mediaType = mediaType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public MediaType getMediaType() {
+            return mediaType;
+        }
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+import java.io.File;
+import java.net.URI;
+import java.security.Principal;
+import java.util.concurrent.RejectedExecutionException;
+import javax.annotation.security.RolesAllowed;
+import javax.validation.Valid;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import springfox.documentation.annotations.ApiIgnore;
+
+/**
+ * A REST Web Service controller for rendering batches of invoice PDF files
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@RestController
+@RequestMapping(path = "invoices/render-jobs", produces = {MediaType.APPLICATION_JSON_VALUE})
+// Security annotations
+@RolesAllowed("view-invoices")
+// Swagger annotations
+@Api(tags = {"Invoice"})
+// Lombok annotations
+@Log
+public class InvoiceRenderJobController {
+
+    @Autowired
+    private InvoiceRenderJobService renderJobService;
+
+    // Spring annotations
+    @PostMapping
+    // Swagger annotations
+    @ApiOperation(value = "Render a batch of invoice PDF files",
+            notes = "Start an asynchronous job rendering the selected invoices "
+            + "to a ZIP archive of PDF files or a single merged PDF file",
+            code = 202,
+            response = InvoiceRenderJob.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 400, message = "The input data is invalid")
+        ,@ApiResponse(code = 503, message = "The render job queue is full")
+    })
+    public ResponseEntity<InvoiceRenderJob> addRenderJob(
+            @RequestBody
+            @Valid InvoiceRenderJobRequest request,
+            @ApiIgnore Principal principal) {
+        InvoiceRenderJob job;
+        try {
+            job = renderJobService.submit(request, name(principal));
+        } catch (IllegalArgumentException ex) {
+            log.fine(ex.getMessage());
+            return ResponseEntity.badRequest().build();
+        } catch (RejectedExecutionException ex) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+        }
+        URI location = ServletUriComponentsBuilder
+                .fromCurrentRequest()
+                .path("/{id}")
+                .buildAndExpand(job.getId())
+                .toUri();
+        return ResponseEntity.accepted().location(location).body(job);
+    }
+
+    // Spring annotations
+    @GetMapping(path = "{jobId}")
+    // Swagger annotations
+    @ApiOperation(value = "View the progress of a render job by ID",
+            notes = "View the progress of a render job by ID. Only the user who submitted the job may view it.",
+            code = 200,
+            response = InvoiceRenderJob.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 404, message = "The jobId is invalid, the job has expired or was submitted by another user")
+    })
+    public ResponseEntity<InvoiceRenderJob> viewRenderJob(
+            @PathVariable String jobId,
+            @ApiIgnore Principal principal) {
+        InvoiceRenderJob job = renderJobService.find(jobId, name(principal));
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(job);
+    }
+
+    // Spring annotations
+    @GetMapping(path = "{jobId}/result", produces = {"application/zip", MediaType.APPLICATION_PDF_VALUE})
+    // Swagger annotations
+    @ApiOperation(value = "Download the result of a render job by ID",
+            notes = "Download the ZIP archive or merged PDF file of a completed render job. "
+            + "Only the user who submitted the job may download it.",
+            code = 200,
+            response = MultipartFile.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 404, message = "The jobId is invalid, the job has expired or was submitted by another user")
+        ,@ApiResponse(code = 409, message = "The job has not completed successfully")
+    })
+    public ResponseEntity<Resource> viewRenderJobResult(
+            @PathVariable String jobId,
+            @ApiIgnore Principal principal) {
+        InvoiceRenderJob job = renderJobService.find(jobId, name(principal));
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        File resultFile = job.getResultFile();
+        if (job.getState() != InvoiceRenderJob.State.COMPLETED || resultFile == null) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
+        }
+        return ResponseEntity
+                .ok()
+                .contentType(job.getFormat().getMediaType())
+                .contentLength(resultFile.length())
+                .header("Content-Disposition", "attachment; filename=\"invoices-" + jobId + "." + job.getFormat().getExtension() + "\"")
+                .body(new FileSystemResource(resultFile));
+    }
+
+    private static String name(Principal principal) {
+        return principal == null ? null : principal.getName();
+    }
+
+}
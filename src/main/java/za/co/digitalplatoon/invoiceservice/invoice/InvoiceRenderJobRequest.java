@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import io.swagger.annotations.ApiModelProperty;
+import java.io.Serializable;
+import java.util.List;
+import javax.validation.constraints.NotNull;
+import lombok.Data;
+
+/**
+ * A request to render a batch of invoice PDF files
+ *
+ * @author William Gadney
+ */
+// Jackson annotations
+@JsonPropertyOrder({
+    "invoiceIds",
+    "filter",
+    "format"
+})
+// Lombok annotations
+@Data
+public class InvoiceRenderJobRequest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The IDs of the invoices to render. "
+            + "Either the invoice IDs or the filter must be specified.",
+            position = 1
+    )
+    private List<Long> invoiceIds;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The filter selecting the invoices to render. "
+            + "Either the invoice IDs or the filter must be specified.",
+            position = 2
+    )
+    private InvoiceFilter filter;
+
+    // Bean validation annotations
+    @NotNull(message = "{InvoiceRenderJobRequest.format.NotNull}")
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The format of the rendered result.",
+            required = true,
+            example = "ZIP",
+            position = 3
+    )
+    private InvoiceRenderJob.Format format = InvoiceRenderJob.Format.ZIP;
+
+}
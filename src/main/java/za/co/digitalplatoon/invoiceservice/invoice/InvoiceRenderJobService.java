@@ -0,0 +1,281 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
+import com.lowagie.text.pdf.PdfCopy;
+import com.lowagie.text.pdf.PdfReader;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.annotation.PreDestroy;
+import lombok.extern.java.Log;
+import net.sf.jasperreports.engine.JRException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * A service that renders batches of invoice PDF files in the background.
+ * <p>
+ * The render jobs run on a bounded worker pool so that large batches do not
+ * tie up the servlet threads serving interactive requests. Each job writes its
+ * result to a temporary file that is removed when the job expires.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Service
+// Lombok annotations
+@Log
+public class InvoiceRenderJobService {
+
+    private final Map<String, InvoiceRenderJob> jobs = new ConcurrentHashMap<>();
+
+    private final InvoiceRepository invoiceRepository;
+
+    private final InvoicePdfRenderer pdfRenderer;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final ThreadPoolTaskExecutor executor;
+
+    private final int maxInvoices;
+
+    private final long retention;
+
+    public InvoiceRenderJobService(
+            InvoiceRepository invoiceRepository,
+            InvoicePdfRenderer pdfRenderer,
+            PlatformTransactionManager transactionManager,
+            @Value("${invoice.render-jobs.pool-size:2}") int poolSize,
+            @Value("${invoice.render-jobs.queue-capacity:100}") int queueCapacity,
+            @Value("${invoice.render-jobs.max-invoices:10000}") int maxInvoices,
+            @Value("${invoice.render-jobs.retention:3600000}") long retention) {
+        this.invoiceRepository = invoiceRepository;
+        this.pdfRenderer = pdfRenderer;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.executor = new ThreadPoolTaskExecutor();
+        this.executor.setThreadNamePrefix("invoice-render-job-");
+        this.executor.setCorePoolSize(poolSize);
+        this.executor.setMaxPoolSize(poolSize);
+        this.executor.setQueueCapacity(queueCapacity);
+        this.executor.initialize();
+        this.maxInvoices = maxInvoices;
+        this.retention = retention;
+    }
+
+    /**
+     * Submit a job to render a batch of invoices
+     *
+     * @param request The render job request
+     * @param createdBy The logged in user submitting the job or null
+     * @return The queued render job
+     * @throws IllegalArgumentException If the request selects no invoices or
+     * too many invoices
+     * @throws RejectedExecutionException If the render job queue is full
+     */
+    public InvoiceRenderJob submit(InvoiceRenderJobRequest request, String createdBy) {
+        List<Long> invoiceIds;
+        if (request.getInvoiceIds() != null && !request.getInvoiceIds().isEmpty()) {
+            invoiceIds = new ArrayList<>(request.getInvoiceIds());
+        } else if (request.getFilter() != null && !request.getFilter().isEmpty()) {
+            invoiceIds = transactionTemplate.execute(status
+                    -> invoiceRepository.findIds(request.getFilter(), maxInvoices + 1));
+        } else {
+            throw new IllegalArgumentException("Either the invoice IDs or the filter must be specified");
+        }
+        if (invoiceIds.isEmpty()) {
+            throw new IllegalArgumentException("No invoices were selected");
+        }
+        if (invoiceIds.size() > maxInvoices) {
+            throw new IllegalArgumentException("A render job may not select more than " + maxInvoices + " invoices");
+        }
+        InvoiceRenderJob job = new InvoiceRenderJob(request.getFormat(), invoiceIds, createdBy);
+        jobs.put(job.getId(), job);
+        try {
+            executor.execute(() -> run(job));
+        } catch (RejectedExecutionException ex) {
+            jobs.remove(job.getId());
+            throw ex;
+        }
+        return job;
+    }
+
+    /**
+     * Find a render job of a user by ID
+     *
+     * @param jobId The render job ID
+     * @param user The logged in user or null
+     * @return The render job or null if the job does not exist, has expired
+     * or was submitted by another user
+     */
+    public InvoiceRenderJob find(String jobId, String user) {
+        InvoiceRenderJob job = jobs.get(jobId);
+        if (job == null || !Objects.equals(job.getCreatedBy(), user)) {
+            return null;
+        }
+        return job;
+    }
+
+    private void run(InvoiceRenderJob job) {
+        job.setState(InvoiceRenderJob.State.RUNNING);
+        File resultFile = null;
+        try {
+            resultFile = File.createTempFile("invoice-render-job-", "." + job.getFormat().getExtension());
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(resultFile))) {
+                switch (job.getFormat()) {
+                    case ZIP:
+                        writeZip(job, out);
+                        break;
+                    case PDF:
+                        writePdf(job, out);
+                        break;
+                    default:
+                        throw new IllegalStateException("Unsupported format " + job.getFormat());
+                }
+            }
+            job.setResultFile(resultFile);
+            job.setCompleted(new Date());
+            job.setState(InvoiceRenderJob.State.COMPLETED);
+        } catch (IOException | DocumentException | RuntimeException ex) {
+            log.log(Level.WARNING, "The invoice render job " + job.getId() + " failed", ex);
+            if (resultFile != null && !resultFile.delete()) {
+                resultFile.deleteOnExit();
+            }
+            job.setCompleted(new Date());
+            job.setState(InvoiceRenderJob.State.FAILED);
+        }
+    }
+
+    private void writeZip(InvoiceRenderJob job, OutputStream out) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (Long invoiceId : job.getInvoiceIds()) {
+                byte[] pdf = render(job, invoiceId);
+                if (pdf != null) {
+                    zip.putNextEntry(new ZipEntry("invoice-" + invoiceId + ".pdf"));
+                    zip.write(pdf);
+                    zip.closeEntry();
+                }
+            }
+        }
+    }
+
+    private void writePdf(InvoiceRenderJob job, OutputStream out) throws IOException, DocumentException {
+        Document document = new Document();
+        PdfCopy copy = new PdfCopy(document, out);
+        copy.setCloseStream(false);
+        document.open();
+        boolean empty = true;
+        for (Long invoiceId : job.getInvoiceIds()) {
+            byte[] pdf = render(job, invoiceId);
+            if (pdf != null) {
+                PdfReader reader = new PdfReader(pdf);
+                for (int page = 1; page <= reader.getNumberOfPages(); page++) {
+                    copy.addPage(copy.getImportedPage(reader, page));
+                }
+                copy.freeReader(reader);
+                reader.close();
+                empty = false;
+            }
+        }
+        if (empty) {
+            throw new IllegalStateException("None of the invoices could be rendered");
+        }
+        document.close();
+    }
+
+    /**
+     * Render a single invoice of a render job, recording the progress
+     *
+     * @return The PDF file bytes or null if the invoice could not be rendered
+     */
+    private byte[] render(InvoiceRenderJob job, Long invoiceId) {
+        try {
+            byte[] pdf = transactionTemplate.execute(status -> {
+                Invoice invoice = invoiceRepository.findWithLineItems(invoiceId);
+                if (invoice == null) {
+                    return null;
+                }
+                try {
+                    return pdfRenderer.renderPdf(invoice);
+                } catch (JRException ex) {
+                    throw new IllegalStateException(ex.getMessage(), ex);
+                }
+            });
+            if (pdf == null) {
+                job.addFailed(invoiceId, "The invoice does not exist");
+            } else {
+                job.addRendered();
+            }
+            return pdf;
+        } catch (RuntimeException ex) {
+            log.log(Level.WARNING, "Unable to render invoice " + invoiceId, ex);
+            job.addFailed(invoiceId, "The invoice could not be rendered");
+            return null;
+        }
+    }
+
+    /**
+     * Remove the render jobs, and their results, that completed longer ago
+     * than the retention period
+     */
+    @Scheduled(fixedDelayString = "${invoice.render-jobs.cleanup-interval:60000}")
+    public void removeExpiredJobs() {
+        long expired = System.currentTimeMillis() - retention;
+        Iterator<InvoiceRenderJob> iterator = jobs.values().iterator();
+        while (iterator.hasNext()) {
+            InvoiceRenderJob job = iterator.next();
+            if (job.getCompleted() != null && job.getCompleted().getTime() < expired) {
+                iterator.remove();
+                deleteResult(job);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        jobs.values().forEach(InvoiceRenderJobService::deleteResult);
+        jobs.clear();
+    }
+
+    private static void deleteResult(InvoiceRenderJob job) {
+        File resultFile = job.getResultFile();
+        if (resultFile != null && !resultFile.delete()) {
+            resultFile.deleteOnExit();
+        }
+    }
+
+}
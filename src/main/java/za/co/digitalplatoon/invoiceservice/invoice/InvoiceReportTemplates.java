@@ -0,0 +1,224 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.extern.java.Log;
+import net.sf.jasperreports.engine.JRException;
+import net.sf.jasperreports.engine.JasperReport;
+import net.sf.jasperreports.engine.util.JRLoader;
+import net.sf.jasperreports.renderers.Renderable;
+import net.sf.jasperreports.renderers.SimpleDataRenderer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+/**
+ * A registry of the compiled invoice report templates.
+ * <p>
+ * The master report, the line item subreport and the logo are loaded once
+ * from the classpath and shared by all threads filling invoice reports. The
+ * templates are reloaded when one of the underlying resources changes.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Component
+// Lombok annotations
+@Log
+public class InvoiceReportTemplates {
+
+    public static final String INVOICE_REPORT = "jasper/Invoice.jasper";
+    public static final String LINE_ITEM_REPORT = "jasper/InvoiceLineItem.jasper";
+    public static final String LOGO = "jasper/eoh-digital-platoon.png";
+
+    public static final String LINE_ITEM_REPORT_PARAMETER = "LINE_ITEM_REPORT";
+    public static final String LOGO_PARAMETER = "LOGO";
+    public static final String LINE_ITEM_DATA_SOURCE_PARAMETER = "LINE_ITEM_DATA_SOURCE";
+
+    private final Timer loadTimer;
+
+    private final long reloadCheckInterval;
+
+    private volatile Templates templates;
+
+    private volatile long nextReloadCheck;
+
+    public InvoiceReportTemplates(
+            MeterRegistry meterRegistry,
+            @Value("${invoice.report.reload-check-interval:5000}") long reloadCheckInterval) {
+        this.loadTimer = Timer
+                .builder("invoice.report.load")
+                .description("The time taken to load the invoice report templates")
+                .register(meterRegistry);
+        this.reloadCheckInterval = reloadCheckInterval;
+    }
+
+    /**
+     * Get the compiled invoice master report
+     *
+     * @return The invoice report
+     * @throws JRException If the report templates could not be loaded
+     */
+    public JasperReport getInvoiceReport() throws JRException {
+        return getTemplates().invoiceReport;
+    }
+
+    /**
+     * Get a hash of the contents of the report templates, which changes
+     * whenever one of the templates changes
+     *
+     * @return The hexadecimal template hash
+     * @throws JRException If the report templates could not be loaded
+     */
+    public String getTemplateHash() throws JRException {
+        return getTemplates().hash;
+    }
+
+    /**
+     * Create the report parameters that supply the shared subreport and logo
+     * to a fill of the invoice master report
+     *
+     * @return A new mutable map of report parameters
+     * @throws JRException If the report templates could not be loaded
+     */
+    public Map<String, Object> createParameters() throws JRException {
+        Templates current = getTemplates();
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put(LINE_ITEM_REPORT_PARAMETER, current.lineItemReport);
+        parameters.put(LOGO_PARAMETER, current.logo);
+        return parameters;
+    }
+
+    private Templates getTemplates() throws JRException {
+        Templates current = templates;
+        if (current != null && (reloadCheckInterval <= 0 || System.currentTimeMillis() < nextReloadCheck)) {
+            return current;
+        }
+        synchronized (this) {
+            current = templates;
+            long now = System.currentTimeMillis();
+            if (current == null || (reloadCheckInterval > 0 && now >= nextReloadCheck)) {
+                long lastModified = lastModified();
+                if (current == null || current.lastModified != lastModified) {
+                    if (current != null) {
+                        log.info("Reloading the invoice report templates");
+                    }
+                    current = load(lastModified);
+                    templates = current;
+                }
+                nextReloadCheck = now + reloadCheckInterval;
+            }
+            return current;
+        }
+    }
+
+    private Templates load(long lastModified) throws JRException {
+        Timer.Sample sample = Timer.start(Clock.SYSTEM);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] invoiceReportBytes = loadBytes(INVOICE_REPORT);
+            byte[] lineItemReportBytes = loadBytes(LINE_ITEM_REPORT);
+            byte[] logoBytes = loadBytes(LOGO);
+            digest.update(invoiceReportBytes);
+            digest.update(lineItemReportBytes);
+            digest.update(logoBytes);
+            return new Templates(
+                    loadReport(INVOICE_REPORT, invoiceReportBytes),
+                    loadReport(LINE_ITEM_REPORT, lineItemReportBytes),
+                    SimpleDataRenderer.getInstance(logoBytes),
+                    String.format("%064x", new BigInteger(1, digest.digest())),
+                    lastModified
+            );
+        } catch (NoSuchAlgorithmException ex) {
+            throw new JRException("Unable to hash the report templates", ex);
+        } finally {
+            sample.stop(loadTimer);
+        }
+    }
+
+    private static JasperReport loadReport(String path, byte[] bytes) throws JRException {
+        try {
+            return (JasperReport) JRLoader.loadObject(new ByteArrayInputStream(bytes));
+        } catch (JRException ex) {
+            throw new JRException("Unable to load the report template " + path, ex);
+        }
+    }
+
+    private static byte[] loadBytes(String path) throws JRException {
+        try (InputStream in = new ClassPathResource(path).getInputStream()) {
+            return StreamUtils.copyToByteArray(in);
+        } catch (IOException ex) {
+            throw new JRException("Unable to load the report resource " + path, ex);
+        }
+    }
+
+    /**
+     * The latest modification time of the template resources, used to detect
+     * changes without loading the templates again
+     */
+    private static long lastModified() throws JRException {
+        long lastModified = 0;
+        for (String path : new String[]{INVOICE_REPORT, LINE_ITEM_REPORT, LOGO}) {
+            try {
+                URL url = new ClassPathResource(path).getURL();
+                URLConnection connection = url.openConnection();
+                connection.setUseCaches(false);
+                try {
+                    lastModified = Math.max(lastModified, connection.getLastModified());
+                } finally {
+                    // Release the file handle held open by the connection
+                    connection.getInputStream().close();
+                }
+            } catch (IOException ex) {
+                throw new JRException("Unable to read the report resource " + path, ex);
+            }
+        }
+        return lastModified;
+    }
+
+    private static final class Templates {
+
+        private final JasperReport invoiceReport;
+        private final JasperReport lineItemReport;
+        private final Renderable logo;
+        private final String hash;
+        private final long lastModified;
+
+        private Templates(JasperReport invoiceReport, JasperReport lineItemReport, Renderable logo,
+                String hash, long lastModified) {
+            this.invoiceReport = invoiceReport;
+            this.lineItemReport = lineItemReport;
+            this.logo = logo;
+            this.hash = hash;
+            this.lastModified = lastModified;
+        }
+    }
+
+}
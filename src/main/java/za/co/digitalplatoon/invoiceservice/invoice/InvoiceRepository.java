@@ -0,0 +1,405 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Tuple;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.From;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.jpa.QueryHints;
+import org.hibernate.query.Query;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * A repository of the invoice read shapes shared by the invoice resources
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Repository
+public class InvoiceRepository {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    /**
+     * Find an invoice by ID
+     *
+     * @param invoiceId The invoice ID
+     * @return The invoice or null if the invoice does not exist
+     */
+    public Invoice find(Long invoiceId) {
+        return em.find(Invoice.class, invoiceId);
+    }
+
+    /**
+     * Find the version of an invoice without loading the invoice
+     *
+     * @param invoiceId The invoice ID
+     * @return The invoice version or null if the invoice does not exist
+     */
+    public Long findVersion(Long invoiceId) {
+        return em.createNamedQuery("Invoice.FindInvoiceVersion", Long.class)
+                .setParameter("id", invoiceId)
+                .getResultList()
+                .stream()
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Find an invoice by ID, loading its line items in the same query
+     *
+     * @param invoiceId The invoice ID
+     * @return The invoice or null if the invoice does not exist
+     */
+    public Invoice findWithLineItems(Long invoiceId) {
+        return em.createNamedQuery("Invoice.FindInvoiceWithLineItems", Invoice.class)
+                .setParameter("id", invoiceId)
+                // Only remove the duplicate invoices created by the join in memory
+                .setHint(QueryHints.HINT_PASS_DISTINCT_THROUGH, false)
+                .setHint(QueryHints.HINT_CACHEABLE, true)
+                .getResultList()
+                .stream()
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Count the line items of an invoice without loading them
+     *
+     * @param invoiceId The invoice ID
+     * @return The number of line items
+     */
+    public long countLineItems(Long invoiceId) {
+        return em.createNamedQuery("InvoiceLineItem.CountLineItemsOfInvoice", Long.class)
+                .setParameter("invoiceId", invoiceId)
+                .getSingleResult();
+    }
+
+    /**
+     * Read the line items of an invoice ordered by ID through a database
+     * cursor. Must be called within a transaction.
+     *
+     * @param invoiceId The invoice ID
+     * @param fetchSize The number of rows fetched from the database at a time
+     * @return A report data source of the line items that must be closed
+     */
+    public InvoiceLineItemDataSource streamLineItems(Long invoiceId, int fetchSize) {
+        Session session = em.unwrap(Session.class);
+        ScrollableResults results = session
+                .createNamedQuery("InvoiceLineItem.FindLineItemsOfInvoice", InvoiceLineItem.class)
+                .setParameter("invoiceId", invoiceId)
+                .setReadOnly(true)
+                .setCacheMode(CacheMode.IGNORE)
+                .setFetchSize(fetchSize)
+                .scroll(ScrollMode.FORWARD_ONLY);
+        return new InvoiceLineItemDataSource(session, results);
+    }
+
+    /**
+     * Find a page of the invoice list ordered by client and ID, selecting only
+     * the listed columns instead of loading and tracking invoice entities
+     *
+     * @param after The cursor of the last invoice of the previous page, or null
+     * for the first page
+     * @param limit The maximum number of invoices to return
+     * @param withTotals Whether to also select the invoice totals
+     * @return The page of invoice list items
+     */
+    // Spring annotations
+    @Transactional(readOnly = true)
+    public List<InvoiceListItem> findListPage(InvoiceCursor after, int limit, boolean withTotals) {
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<InvoiceListItem> query = cb.createQuery(InvoiceListItem.class);
+        Root<Invoice> invoice = query.from(Invoice.class);
+        Path<String> client = invoice.get("client");
+        Path<Long> id = invoice.get("id");
+        List<Selection<?>> selections = new ArrayList<>(Arrays.asList(id, client, invoice.get("invoiceDate")));
+        if (withTotals) {
+            selections.addAll(Arrays.asList(invoice.get("subTotal"), invoice.get("vat"), invoice.get("total")));
+        }
+        query.select(cb.construct(InvoiceListItem.class, selections.toArray(new Selection<?>[selections.size()])))
+                .orderBy(cb.asc(client), cb.asc(id));
+        if (after != null) {
+            query.where(after(cb, client, id, after));
+        }
+        return em.createQuery(query)
+                .setMaxResults(limit)
+                .setHint(QueryHints.HINT_CACHEABLE, true)
+                .getResultList();
+    }
+
+    /**
+     * Find a page of the invoices matching a filter ordered by client and ID
+     *
+     * @param filter The invoice filter
+     * @param after The cursor of the last invoice of the previous page, or null
+     * for the first page
+     * @param limit The maximum number of invoices to return
+     * @return The page of invoices
+     */
+    public List<Invoice> search(InvoiceFilter filter, InvoiceCursor after, int limit) {
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<Invoice> query = cb.createQuery(Invoice.class);
+        Root<Invoice> invoice = query.from(Invoice.class);
+        Path<String> client = invoice.get("client");
+        Path<Long> id = invoice.get("id");
+        List<Predicate> predicates = new ArrayList<>(Arrays.asList(predicates(cb, invoice, filter)));
+        if (after != null) {
+            predicates.add(after(cb, client, id, after));
+        }
+        query.where(predicates.toArray(new Predicate[predicates.size()]))
+                .orderBy(cb.asc(client), cb.asc(id));
+        return em.createQuery(query)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    /**
+     * Create the keyset predicate that selects the invoices ordered after a
+     * cursor by client and ID
+     */
+    private static Predicate after(CriteriaBuilder cb, Path<String> client, Path<Long> id, InvoiceCursor after) {
+        return cb.or(
+                cb.greaterThan(client, after.getClient()),
+                cb.and(cb.equal(client, after.getClient()), cb.greaterThan(id, after.getId())));
+    }
+
+    /**
+     * Find a page of the invoices added or changed after a cursor, ordered by
+     * change sequence and ID
+     *
+     * @param after The cursor of the last change of the previous page, or null
+     * for the first page
+     * @param limit The maximum number of invoices to return
+     * @return The page of changed invoices
+     */
+    public List<Invoice> findChanges(InvoiceChangeCursor after, int limit) {
+        TypedQuery<Invoice> query;
+        if (after == null) {
+            query = em.createNamedQuery("Invoice.FindChanges", Invoice.class);
+        } else {
+            query = em.createNamedQuery("Invoice.FindChangesAfter", Invoice.class)
+                    .setParameter("changeSequence", after.getChangeSequence())
+                    .setParameter("id", after.getId());
+        }
+        return query
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    /**
+     * Find the change sequence of the most recently committed invoice change
+     *
+     * @return The change sequence or null if there are no invoice changes
+     */
+    public Long findLastChangeSequence() {
+        return em.createNamedQuery("Invoice.FindLastChangeSequence", Long.class).getSingleResult();
+    }
+
+    /**
+     * Stream all invoices ordered by client and ID through a database cursor.
+     * <p>
+     * Each invoice is detached from the persistence context once the action
+     * has processed it, so memory use does not grow with the number of
+     * invoices. Must be called within a transaction.
+     *
+     * @param fetchSize The number of rows fetched from the database at a time
+     * @param action The action performed on each invoice
+     */
+    public void forEach(int fetchSize, Consumer<Invoice> action) {
+        Session session = em.unwrap(Session.class);
+        try (ScrollableResults results = session
+                .createNamedQuery("Invoice.FindAllInvoices", Invoice.class)
+                .setReadOnly(true)
+                .setCacheMode(CacheMode.IGNORE)
+                .setFetchSize(fetchSize)
+                .scroll(ScrollMode.FORWARD_ONLY)) {
+            while (results.next()) {
+                Invoice invoice = (Invoice) results.get(0);
+                action.accept(invoice);
+                session.detach(invoice);
+            }
+        }
+    }
+
+    /**
+     * Stream the line items of an invoice, or of the invoices matching a
+     * filter, together with their invoices through a database cursor, ordered
+     * by client, invoice ID and line item ID.
+     * <p>
+     * The rows are selected as values rather than entities, so memory use does
+     * not grow with the number of rows. Must be called within a transaction.
+     *
+     * @param invoiceId The invoice ID, or null for the invoices matching the
+     * filter
+     * @param filter The invoice filter
+     * @param fetchSize The number of rows fetched from the database at a time
+     * @param action The action performed on each row
+     */
+    public void forEachExportRow(Long invoiceId, InvoiceFilter filter, int fetchSize, Consumer<InvoiceExportRow> action) {
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<InvoiceExportRow> query = cb.createQuery(InvoiceExportRow.class);
+        Root<InvoiceLineItem> lineItem = query.from(InvoiceLineItem.class);
+        Join<InvoiceLineItem, Invoice> invoice = lineItem.join("invoice");
+        query.select(cb.construct(InvoiceExportRow.class,
+                invoice.get("id"),
+                invoice.get("client"),
+                invoice.get("invoiceDate"),
+                invoice.get("createdBy"),
+                invoice.get("vatRate"),
+                lineItem.get("id"),
+                lineItem.get("quantity"),
+                lineItem.get("description"),
+                lineItem.get("unitPrice"),
+                lineItem.get("lineItemTotal"),
+                invoice.get("subTotal"),
+                invoice.get("vat"),
+                invoice.get("total")))
+                .where(invoiceId == null
+                        ? predicates(cb, invoice, filter)
+                        : new Predicate[]{cb.equal(invoice.get("id"), invoiceId)})
+                .orderBy(cb.asc(invoice.get("client")), cb.asc(invoice.get("id")), cb.asc(lineItem.get("id")));
+        try (ScrollableResults results = em.createQuery(query)
+                .unwrap(Query.class)
+                .setFetchSize(fetchSize)
+                .scroll(ScrollMode.FORWARD_ONLY)) {
+            while (results.next()) {
+                action.accept((InvoiceExportRow) results.get(0));
+            }
+        }
+    }
+
+    /**
+     * Find the IDs of the invoices matching a filter, ordered by client and ID
+     *
+     * @param filter The invoice filter
+     * @param maxResults The maximum number of IDs to return
+     * @return The matching invoice IDs
+     */
+    public List<Long> findIds(InvoiceFilter filter, int maxResults) {
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<Long> query = cb.createQuery(Long.class);
+        Root<Invoice> invoice = query.from(Invoice.class);
+        query.select(invoice.<Long>get("id"))
+                .where(predicates(cb, invoice, filter))
+                .orderBy(cb.asc(invoice.get("client")), cb.asc(invoice.get("id")));
+        return em.createQuery(query)
+                .setMaxResults(maxResults)
+                .getResultList();
+    }
+
+    /**
+     * Sum the persisted invoice totals in the database, grouped by period of
+     * the invoice date and optionally by client, without loading the invoices
+     *
+     * @param filter The invoice filter
+     * @param period The length of the periods to group the invoice dates by
+     * @param byClient Whether to also group the totals by client
+     * @return The invoice totals ordered by client and period
+     */
+    public List<InvoiceSummary> summarize(InvoiceFilter filter, InvoiceSummary.Period period, boolean byClient) {
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<Tuple> query = cb.createTupleQuery();
+        Root<Invoice> invoice = query.from(Invoice.class);
+        Path<Date> invoiceDate = invoice.get("invoiceDate");
+        Expression<String> client = invoice.get("client");
+        Expression<Integer> year = cb.function("year", Integer.class, invoiceDate);
+        Expression<Integer> month = cb.function("month", Integer.class, invoiceDate);
+        Expression<Integer> day = cb.function("day", Integer.class, invoiceDate);
+        List<Expression<?>> groups = new ArrayList<>();
+        if (byClient) {
+            groups.add(client);
+        }
+        groups.add(year);
+        if (period != InvoiceSummary.Period.YEAR) {
+            groups.add(month);
+        }
+        if (period == InvoiceSummary.Period.DAY) {
+            groups.add(day);
+        }
+        Expression<Long> invoiceCount = cb.count(invoice);
+        Expression<BigDecimal> subTotal = cb.sum(invoice.<BigDecimal>get("subTotal"));
+        Expression<BigDecimal> vat = cb.sum(invoice.<BigDecimal>get("vat"));
+        Expression<BigDecimal> total = cb.sum(invoice.<BigDecimal>get("total"));
+        List<Selection<?>> selections = new ArrayList<>(groups);
+        selections.addAll(Arrays.asList(invoiceCount, subTotal, vat, total));
+        query.multiselect(selections)
+                .where(predicates(cb, invoice, filter))
+                .groupBy(groups)
+                .orderBy(groups.stream().map(cb::asc).collect(Collectors.toList()));
+        return em.createQuery(query)
+                .getResultList()
+                .stream()
+                .map(tuple -> new InvoiceSummary(
+                        groups.contains(client) ? tuple.get(client) : null,
+                        tuple.get(year),
+                        groups.contains(month) ? tuple.get(month) : null,
+                        groups.contains(day) ? tuple.get(day) : null,
+                        tuple.get(invoiceCount),
+                        tuple.get(subTotal),
+                        tuple.get(vat),
+                        tuple.get(total)))
+                .collect(Collectors.toList());
+    }
+
+    private static Predicate[] predicates(CriteriaBuilder cb, From<?, Invoice> invoice, InvoiceFilter filter) {
+        List<Predicate> predicates = new ArrayList<>();
+        if (filter.getClient() != null) {
+            predicates.add(cb.equal(invoice.get("client"), filter.getClient()));
+        }
+        if (filter.getClientPrefix() != null) {
+            predicates.add(cb.like(invoice.get("client"), escapeLike(filter.getClientPrefix()) + "%", '\\'));
+        }
+        if (filter.getFromDate() != null) {
+            predicates.add(cb.greaterThanOrEqualTo(invoice.<Date>get("invoiceDate"), filter.getFromDate()));
+        }
+        if (filter.getToDate() != null) {
+            predicates.add(cb.lessThanOrEqualTo(invoice.<Date>get("invoiceDate"), filter.getToDate()));
+        }
+        if (filter.getCreatedBy() != null) {
+            predicates.add(cb.equal(invoice.get("createdBy"), filter.getCreatedBy()));
+        }
+        return predicates.toArray(new Predicate[predicates.size()]);
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import io.swagger.annotations.ApiModelProperty;
+import java.math.BigDecimal;
+import lombok.Getter;
+
+/**
+ * The invoice totals of a client for a period
+ *
+ * @author William Gadney
+ */
+// Jackson annotations
+@JsonInclude(JsonInclude.Include.NON_NULL)
+@JsonPropertyOrder({
+    "client",
+    "year",
+    "month",
+    "day",
+    "invoiceCount",
+    "subTotal",
+    "vat",
+    "total"
+})
+// Lombok annotations
+@Getter
+public class InvoiceSummary {
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The invoice client. Omitted when the totals are not grouped by client.",
+            example = "ABC Transport",
+            readOnly = true,
+            position = 1
+    )
+    private final String client;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The year of the invoice dates.",
+            example = "2018",
+            readOnly = true,
+            position = 2
+    )
+    private final Integer year;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The month of the invoice dates. Omitted when the totals are grouped by year.",
+            example = "4",
+            readOnly = true,
+            position = 3
+    )
+    private final Integer month;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The day of the month of the invoice dates. Omitted unless the totals are grouped by day.",
+            example = "17",
+            readOnly = true,
+            position = 4
+    )
+    private final Integer day;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The number of invoices.",
+            example = "12",
+            readOnly = true,
+            position = 5
+    )
+    private final long invoiceCount;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The sum of the invoice sub totals excluding VAT.",
+            example = "71.64",
+            readOnly = true,
+            position = 6
+    )
+    private final BigDecimal subTotal;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The sum of the invoice VAT amounts.",
+            example = "10.80",
+            readOnly = true,
+            position = 7
+    )
+    private final BigDecimal vat;
+
+    // Swagger annotations
+    @ApiModelProperty(
+            value = "The sum of the invoice totals including VAT.",
+            example = "82.44",
+            readOnly = true,
+            position = 8
+    )
+    private final BigDecimal total;
+
+    InvoiceSummary(String client, Integer year, Integer month, Integer day,
+            long invoiceCount, BigDecimal subTotal, BigDecimal vat, BigDecimal total) {
+        this.client = client;
+        this.year = year;
+        this.month = month;
+        this.day = day;
+        this.invoiceCount = invoiceCount;
+        this.subTotal = subTotal;
+        this.vat = vat;
+        this.total = total;
+    }
+
+    /**
+     * The length of the periods that invoice totals are grouped by
+     */
+    public enum Period {
+        DAY,
+        MONTH,
+        YEAR
+    }
+
+}
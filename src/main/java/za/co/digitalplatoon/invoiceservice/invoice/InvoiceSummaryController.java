@@ -0,0 +1,74 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+import java.util.List;
+import javax.annotation.security.RolesAllowed;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.ModelAttribute;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * A REST Web Service controller for reporting invoice totals
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@RestController
+@RequestMapping(path = "invoices/summary", produces = {
+    MediaType.APPLICATION_JSON_VALUE,
+    InvoiceController.APPLICATION_SMILE_VALUE,
+    InvoiceController.APPLICATION_CBOR_VALUE
+})
+// Security annotations
+@RolesAllowed("view-invoices")
+// Swagger annotations
+@Api(tags = {"Invoice"})
+public class InvoiceSummaryController {
+
+    @Autowired
+    private InvoiceRepository invoiceRepository;
+
+    // Spring annotations
+    @GetMapping
+    // Swagger annotations
+    @ApiOperation(value = "View invoice totals by client and period",
+            notes = "View the sub total, VAT and total of the selected invoices "
+            + "grouped by client and by day, month or year of the invoice date",
+            code = 200,
+            responseContainer = "List",
+            response = InvoiceSummary.class
+    )
+    @ApiResponses(value = {
+        @ApiResponse(code = 400, message = "The input data is invalid")
+    })
+    public ResponseEntity<List<InvoiceSummary>> viewSummary(
+            @ModelAttribute InvoiceFilter filter,
+            @RequestParam(name = "period", defaultValue = "MONTH") InvoiceSummary.Period period,
+            @RequestParam(name = "byClient", defaultValue = "true") boolean byClient) {
+        return ResponseEntity.ok(invoiceRepository.summarize(filter, period, byClient));
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceContext;
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
+import javax.validation.Validator;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.PropertyAccessorFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * A service that updates invoices.
+ * <p>
+ * The changes are applied to the loaded invoice rather than replacing it, so
+ * that only the invoice fields and line items that changed are written. Line
+ * items are matched by ID: line items without an ID are added, and line items
+ * that are left out are removed. The invoice and line item versions supplied
+ * with the changes must match the saved versions, so that changes made by
+ * someone else in the meantime are not overwritten. Changes that leave the
+ * invoice as it was do not create a new invoice version.
+ *
+ * @author William Gadney
+ */
+// Spring annotations
+@Service
+public class InvoiceUpdateService {
+
+    private static final String[] INVOICE_PROPERTIES = {"client", "vatRate", "invoiceDate"};
+
+    private static final String[] LINE_ITEM_PROPERTIES = {"quantity", "description", "unitPrice"};
+
+    @PersistenceContext
+    private EntityManager em;
+
+    private final InvoiceRepository invoiceRepository;
+
+    private final InvoicePdfOutbox pdfOutbox;
+
+    private final Validator validator;
+
+    private final TransactionTemplate transactionTemplate;
+
+    public InvoiceUpdateService(
+            InvoiceRepository invoiceRepository,
+            InvoicePdfOutbox pdfOutbox,
+            Validator validator,
+            PlatformTransactionManager transactionManager) {
+        this.invoiceRepository = invoiceRepository;
+        this.pdfOutbox = pdfOutbox;
+        this.validator = validator;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /**
+     * Update an invoice
+     *
+     * @param invoiceId The ID of the invoice
+     * @param changes The invoice changes, with the version of the invoice and
+     * of the line items the changes were made to
+     * @param partial Whether the fields that are not specified are left
+     * unchanged, rather than the changes replacing the invoice. The line items
+     * are left unchanged if they are not specified.
+     * @return The updated invoice or null if the invoice was not found
+     * @throws OptimisticLockException If the invoice or one of its line items
+     * was changed since the supplied version
+     * @throws ConstraintViolationException If the partial changes are invalid
+     * @throws IllegalArgumentException If a line item is not on the invoice,
+     * or the version of the invoice or of a line item is not supplied
+     */
+    public Invoice update(Long invoiceId, Invoice changes, boolean partial) {
+        if (partial) {
+            validatePartial(changes);
+        }
+        return transactionTemplate.execute(status -> {
+            Invoice invoice = invoiceRepository.findWithLineItems(invoiceId);
+            if (invoice == null) {
+                return null;
+            }
+            checkVersion(invoice, invoice.getVersion(), changes.getVersion());
+            boolean changed = copy(changes, invoice, INVOICE_PROPERTIES, partial);
+            if (!partial || changes.getLineItems() != null) {
+                changed |= updateLineItems(invoice, changes.getLineItems());
+            }
+            if (changed) {
+                // A change to only the line items also changes the invoice version
+                invoice.modified();
+                em.flush();
+                // Pre-render the PDF file of the new version
+                pdfOutbox.add(invoice);
+            }
+            return invoice;
+        });
+    }
+
+    /**
+     * Update the line items of an invoice
+     *
+     * @return Whether a line item was added, changed or removed
+     */
+    private boolean updateLineItems(Invoice invoice, List<InvoiceLineItem> changedLineItems) {
+        Map<Long, InvoiceLineItem> lineItems = invoice.getLineItems().stream()
+                .collect(Collectors.toMap(InvoiceLineItem::getId, Function.identity()));
+        Set<Long> kept = new HashSet<>();
+        boolean changed = false;
+        for (InvoiceLineItem changes : changedLineItems) {
+            if (changes.getId() == null) {
+                InvoiceLineItem lineItem = new InvoiceLineItem();
+                copy(changes, lineItem, LINE_ITEM_PROPERTIES, false);
+                invoice.addLineItem(lineItem);
+                changed = true;
+                continue;
+            }
+            InvoiceLineItem lineItem = lineItems.get(changes.getId());
+            if (lineItem == null || !kept.add(changes.getId())) {
+                throw new IllegalArgumentException("Line item " + changes.getId() + " is not on invoice " + invoice.getId());
+            }
+            checkVersion(lineItem, lineItem.getVersion(), changes.getVersion());
+            // Hibernate only updates the line items whose values changed
+            changed |= copy(changes, lineItem, LINE_ITEM_PROPERTIES, true);
+        }
+        // Removed line items are deleted as orphans
+        for (InvoiceLineItem lineItem : new ArrayList<>(invoice.getLineItems())) {
+            if (lineItem.getId() != null && !kept.contains(lineItem.getId())) {
+                invoice.removeLineItem(lineItem);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Check the supplied version of a changed entity. The version must be
+     * supplied, so that a change is never made without the optimistic lock
+     * check.
+     */
+    private static void checkVersion(Object entity, Long version, Long suppliedVersion) {
+        if (suppliedVersion == null) {
+            throw new IllegalArgumentException("The version of " + entity.getClass().getSimpleName() + " is not supplied");
+        }
+        if (!suppliedVersion.equals(version)) {
+            throw new OptimisticLockException("The version " + suppliedVersion + " is not the current version " + version, null, entity);
+        }
+    }
+
+    /**
+     * Copy the properties that are specified, or all properties unless the
+     * copy is partial
+     *
+     * @return Whether a property value changed
+     */
+    private static boolean copy(Object source, Object target, String[] properties, boolean partial) {
+        BeanWrapper from = PropertyAccessorFactory.forBeanPropertyAccess(source);
+        BeanWrapper to = PropertyAccessorFactory.forBeanPropertyAccess(target);
+        boolean changed = false;
+        for (String property : properties) {
+            Object value = from.getPropertyValue(property);
+            if ((value != null || !partial) && !same(to.getPropertyValue(property), value)) {
+                to.setPropertyValue(property, value);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Compare property values the way Hibernate dirty checks them, ignoring
+     * the scale of amounts and the time of day of dates loaded from a date
+     * column
+     */
+    private static boolean same(Object current, Object value) {
+        if (current instanceof BigDecimal && value instanceof BigDecimal) {
+            return ((BigDecimal) current).compareTo((BigDecimal) value) == 0;
+        }
+        if (current instanceof java.sql.Date && value instanceof Date) {
+            return ((java.sql.Date) current).toLocalDate()
+                    .equals(new java.sql.Date(((Date) value).getTime()).toLocalDate());
+        }
+        if (current instanceof Date && value instanceof Date) {
+            return ((Date) current).getTime() == ((Date) value).getTime();
+        }
+        return Objects.equals(current, value);
+    }
+
+    /**
+     * Validate the specified fields of partial changes. New line items are
+     * validated completely.
+     */
+    private void validatePartial(Invoice changes) {
+        Set<ConstraintViolation<?>> violations = new HashSet<>();
+        validateSpecified(changes, INVOICE_PROPERTIES, violations);
+        if (changes.getLineItems() != null) {
+            violations.addAll(validator.validateProperty(changes, "lineItems"));
+            for (InvoiceLineItem lineItem : changes.getLineItems()) {
+                if (lineItem.getId() == null) {
+                    violations.addAll(validator.validate(lineItem));
+                } else {
+                    validateSpecified(lineItem, LINE_ITEM_PROPERTIES, violations);
+                }
+            }
+        }
+        if (!violations.isEmpty()) {
+            throw new ConstraintViolationException(violations);
+        }
+    }
+
+    private void validateSpecified(Object bean, String[] properties, Set<ConstraintViolation<?>> violations) {
+        BeanWrapper wrapper = PropertyAccessorFactory.forBeanPropertyAccess(bean);
+        for (String property : properties) {
+            if (wrapper.getPropertyValue(property) != null) {
+                violations.addAll(validator.validateProperty(bean, property));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.keycloak.KeycloakSecurityContext;
+import org.keycloak.adapters.KeycloakConfigResolver;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.common.util.Time;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.jose.jwk.JWK;
+import org.keycloak.jose.jwk.JWKBuilder;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.util.JsonSerialization;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.util.TestPropertyValues;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that bearer tokens signed by a stub realm are authenticated through
+ * the Keycloak filters once, and that the requests are stateless
+ *
+ * @author William Gadney
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@AutoConfigureMockMvc
+@ContextConfiguration(initializers = KeycloakAuthenticationTest.StubRealm.class)
+public class KeycloakAuthenticationTest {
+
+    private static final String REALM = "eoh";
+
+    private static final KeyPair keyPair = generateKeyPair();
+
+    private static volatile JSONWebKeySet realmKeySet = keySet("key", keyPair);
+
+    private static HttpServer server;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private KeycloakConfigResolver configResolver;
+
+    @Autowired
+    private KeycloakRealmKeys realmKeys;
+
+    @Autowired
+    private KeycloakTokenCache tokenCache;
+
+    /**
+     * Serves the keys of the stub realm and points the Keycloak adapter at it
+     */
+    public static class StubRealm implements ApplicationContextInitializer<ConfigurableApplicationContext> {
+
+        @Override
+        public void initialize(ConfigurableApplicationContext context) {
+            try {
+                server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            server.createContext("/auth/realms/" + REALM + "/protocol/openid-connect/certs", exchange -> {
+                byte[] body = JsonSerialization.writeValueAsBytes(realmKeySet);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            TestPropertyValues.of(
+                    "keycloak.auth-server-url=http://localhost:" + server.getAddress().getPort() + "/auth",
+                    "keycloak.realm=" + REALM,
+                    "keycloak.ssl-required=none",
+                    "keycloak.min-time-between-jwks-requests=0"
+            ).applyTo(context);
+        }
+
+    }
+
+    @AfterClass
+    public static void stopRealm() {
+        server.stop(0);
+    }
+
+    @Test
+    public void bearerTokenIsVerifiedOnceWithoutSession() throws Exception {
+        KeycloakDeployment deployment = configResolver.resolve(null);
+        assertSame(realmKeys, deployment.getPublicKeyLocator());
+        String token = token(deployment, "key", keyPair);
+
+        MvcResult first = mockMvc.perform(get("/invoices").header(HttpHeaders.AUTHORIZATION, "Bearer " + token))
+                .andExpect(status().isOk())
+                .andReturn();
+        assertNull(first.getRequest().getSession(false));
+        assertNotNull(tokenCache.get(token));
+
+        // Verifying the token again would fail, because the realm no longer has its key
+        realmKeySet = keySet("rotated", generateKeyPair());
+        realmKeys.refreshKeys();
+        MvcResult second = mockMvc.perform(get("/invoices").header(HttpHeaders.AUTHORIZATION, "Bearer " + token))
+                .andExpect(status().isOk())
+                .andExpect(request().attribute(KeycloakSecurityContext.class.getName(), notNullValue()))
+                .andReturn();
+        assertNull(second.getRequest().getSession(false));
+    }
+
+    @Test
+    public void unverifiedTokenIsNotCached() throws Exception {
+        KeycloakDeployment deployment = configResolver.resolve(null);
+        String token = token(deployment, "unknown", generateKeyPair());
+
+        mockMvc.perform(get("/invoices").header(HttpHeaders.AUTHORIZATION, "Bearer " + token))
+                .andExpect(status().isUnauthorized());
+        assertNull(tokenCache.get(token));
+    }
+
+    private static String token(KeycloakDeployment deployment, String kid, KeyPair keyPair) {
+        AccessToken token = new AccessToken();
+        token.id(UUID.randomUUID().toString());
+        token.issuer(deployment.getRealmInfoUrl());
+        token.subject(UUID.randomUUID().toString());
+        token.type("Bearer");
+        token.issuedNow();
+        token.expiration(Time.currentTime() + 300);
+        token.setPreferredUsername("willy");
+        AccessToken.Access realmAccess = new AccessToken.Access();
+        realmAccess.addRole("view-invoices");
+        token.setRealmAccess(realmAccess);
+        return new JWSBuilder().kid(kid).jsonContent(token).rsa256(keyPair.getPrivate());
+    }
+
+    private static JSONWebKeySet keySet(String kid, KeyPair keyPair) {
+        JSONWebKeySet keySet = new JSONWebKeySet();
+        keySet.setKeys(new JWK[]{JWKBuilder.create().kid(kid).rs256(keyPair.getPublic())});
+        return keySet;
+    }
+
+    private static KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            return generator.generateKeyPair();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.keycloak.adapters.AdapterRSATokenVerifier;
+import org.keycloak.adapters.KeycloakDeployment;
+import org.keycloak.adapters.KeycloakDeploymentBuilder;
+import org.keycloak.adapters.RefreshableKeycloakSecurityContext;
+import org.keycloak.adapters.springsecurity.account.SimpleKeycloakAccount;
+import org.keycloak.adapters.springsecurity.authentication.KeycloakAuthenticationProvider;
+import org.keycloak.adapters.springsecurity.token.KeycloakAuthenticationToken;
+import org.keycloak.common.util.Time;
+import org.keycloak.jose.jwk.JSONWebKeySet;
+import org.keycloak.jose.jwk.JWK;
+import org.keycloak.jose.jwk.JWKBuilder;
+import org.keycloak.jose.jws.JWSBuilder;
+import org.keycloak.jose.jws.JWSInput;
+import org.keycloak.representations.AccessToken;
+import org.keycloak.representations.adapters.config.AdapterConfig;
+import org.keycloak.util.JsonSerialization;
+import org.springframework.security.core.authority.mapping.SimpleAuthorityMapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that bearer tokens are verified against the cached keys of a stub
+ * realm built from keycloak-eoh-realm.json, and that their authentications
+ * are reused until the tokens expire
+ *
+ * @author William Gadney
+ */
+public class KeycloakTokenCacheTest {
+
+    private HttpServer server;
+
+    private final AtomicInteger keyRequests = new AtomicInteger();
+
+    private volatile JSONWebKeySet realmKeys;
+
+    private KeycloakDeployment deployment;
+
+    private final KeycloakRealmKeys locator = new KeycloakRealmKeys();
+
+    private final Set<String> realmRoles = new HashSet<>();
+
+    @Before
+    public void setUp() throws Exception {
+        JsonNode realm = new ObjectMapper().readTree(new File("keycloak-eoh-realm.json"));
+        realm.path("roles").path("realm").forEach(role -> realmRoles.add(role.path("name").asText()));
+        String realmName = realm.path("realm").asText();
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/auth/realms/" + realmName + "/protocol/openid-connect/certs", exchange -> {
+            keyRequests.incrementAndGet();
+            byte[] body = JsonSerialization.writeValueAsBytes(realmKeys);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        AdapterConfig config = new AdapterConfig();
+        config.setAuthServerUrl("http://localhost:" + server.getAddress().getPort() + "/auth");
+        config.setRealm(realmName);
+        config.setResource("rest-api");
+        config.setBearerOnly(true);
+        config.setSslRequired("none");
+        config.setPrincipalAttribute("preferred_username");
+        config.setMinTimeBetweenJwksRequests(0);
+        deployment = KeycloakDeploymentBuilder.build(config);
+        locator.locateKeysOf(deployment);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void tokensAreVerifiedWithCachedRealmKeys() throws Exception {
+        KeyPair first = generateKeyPair();
+        realmKeys = keySet("first", first);
+        assertSame(locator, deployment.getPublicKeyLocator());
+
+        AdapterRSATokenVerifier.verifyToken(token("first", first, 300), deployment);
+        AdapterRSATokenVerifier.verifyToken(token("first", first, 300), deployment);
+        assertEquals(1, keyRequests.get());
+
+        // The keys of a rotated realm are fetched when a token signed with a new key arrives
+        KeyPair second = generateKeyPair();
+        realmKeys = keySet("second", second);
+        AdapterRSATokenVerifier.verifyToken(token("second", second, 300), deployment);
+        assertEquals(2, keyRequests.get());
+
+        locator.refreshKeys();
+        assertEquals(3, keyRequests.get());
+        AdapterRSATokenVerifier.verifyToken(token("second", second, 300), deployment);
+        assertEquals(3, keyRequests.get());
+    }
+
+    @Test
+    public void authenticationsAreCachedUntilTheTokenExpires() throws Exception {
+        KeyPair keyPair = generateKeyPair();
+        realmKeys = keySet("key", keyPair);
+        KeycloakTokenCache tokenCache = new KeycloakTokenCache(new SimpleMeterRegistry(), 100, 300000);
+
+        String token = token("key", keyPair, 300);
+        KeycloakAuthenticationToken authentication = authenticate(token);
+        assertTrue(authentication.getAuthorities().stream()
+                .anyMatch(authority -> authority.getAuthority().equals("ROLE_view-invoices")));
+        tokenCache.put(token, authentication);
+        assertSame(authentication, tokenCache.get(token));
+
+        String expired = token("key", keyPair, -1);
+        tokenCache.put(expired, new KeycloakAuthenticationToken(account(expired), false));
+        assertNull(tokenCache.get(expired));
+        assertNull(tokenCache.get(token("key", keyPair, 300)));
+    }
+
+    private KeycloakAuthenticationToken authenticate(String token) throws Exception {
+        AdapterRSATokenVerifier.verifyToken(token, deployment);
+        KeycloakAuthenticationProvider provider = new KeycloakAuthenticationProvider();
+        provider.setGrantedAuthoritiesMapper(new SimpleAuthorityMapper());
+        return (KeycloakAuthenticationToken) provider.authenticate(new KeycloakAuthenticationToken(account(token), false));
+    }
+
+    private SimpleKeycloakAccount account(String token) throws Exception {
+        AccessToken accessToken = new JWSInput(token).readJsonContent(AccessToken.class);
+        RefreshableKeycloakSecurityContext context
+                = new RefreshableKeycloakSecurityContext(deployment, null, token, accessToken, null, null, null);
+        return new SimpleKeycloakAccount(() -> accessToken.getPreferredUsername(),
+                accessToken.getRealmAccess().getRoles(), context);
+    }
+
+    private String token(String kid, KeyPair keyPair, int expiresIn) {
+        AccessToken token = new AccessToken();
+        token.id(UUID.randomUUID().toString());
+        token.issuer(deployment.getRealmInfoUrl());
+        token.subject(UUID.randomUUID().toString());
+        token.type("Bearer");
+        token.issuedNow();
+        token.expiration(Time.currentTime() + expiresIn);
+        token.setPreferredUsername("willy");
+        AccessToken.Access realmAccess = new AccessToken.Access();
+        realmRoles.forEach(realmAccess::addRole);
+        token.setRealmAccess(realmAccess);
+        return new JWSBuilder().kid(kid).jsonContent(token).rsa256(keyPair.getPrivate());
+    }
+
+    private static JSONWebKeySet keySet(String kid, KeyPair keyPair) {
+        JSONWebKeySet keySet = new JSONWebKeySet();
+        keySet.setKeys(new JWK[]{JWKBuilder.create().kid(kid).rs256(keyPair.getPublic())});
+        return keySet;
+    }
+
+    private static KeyPair generateKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        return generator.generateKeyPair();
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import za.co.digitalplatoon.invoiceservice.invoice.InvoicePdfRenderer;
+import za.co.digitalplatoon.invoiceservice.invoice.JasperReportsInvoiceFactory;
+import static org.hamcrest.Matchers.containsString;
+import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.user;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks that the application metrics are published on the Prometheus scrape
+ * endpoint to users with the view-metrics role
+ *
+ * @author William Gadney
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@AutoConfigureMockMvc
+public class PrometheusEndpointTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private InvoicePdfRenderer pdfRenderer;
+
+    @Test
+    public void scrape() throws Exception {
+        pdfRenderer.renderPdf(JasperReportsInvoiceFactory.getInvoice(3));
+        mockMvc.perform(get("/actuator/health")).andExpect(status().isOk());
+        mockMvc.perform(get("/actuator/prometheus")).andExpect(status().isForbidden());
+        mockMvc.perform(get("/actuator/metrics")).andExpect(status().isForbidden());
+        mockMvc.perform(get("/actuator/prometheus").with(user("willy").roles("view-invoices")))
+                .andExpect(status().isForbidden());
+
+        mockMvc.perform(get("/actuator/prometheus").with(user("prometheus").roles("view-metrics")))
+                .andExpect(status().isOk())
+                .andExpect(content().string(containsString("http_server_requests_seconds_bucket{")))
+                .andExpect(content().string(containsString("invoice_report_load_seconds_count")))
+                .andExpect(content().string(containsString("invoice_report_fill_seconds_bucket{")))
+                .andExpect(content().string(containsString("invoice_report_export_seconds_bucket{")))
+                .andExpect(content().string(containsString("invoice_report_pdf_size_bytes_bucket{")))
+                .andExpect(content().string(containsString("hibernate_query_executions_total")))
+                .andExpect(content().string(containsString("hibernate_entities_loads_total")))
+                .andExpect(content().string(containsString("hibernate_second_level_cache_requests")));
+    }
+
+}
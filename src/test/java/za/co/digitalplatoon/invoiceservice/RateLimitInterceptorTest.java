@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the requests of each client are limited by rate and concurrency
+ *
+ * @author William Gadney
+ */
+public class RateLimitInterceptorTest {
+
+    @Test
+    public void burstIsLimitedPerClient() throws Exception {
+        // The bucket is not refilled noticeably while the test runs
+        RateLimitInterceptor interceptor = new RateLimitInterceptor(
+                new RateLimiter("test", 0.001, 2, 0, new SimpleMeterRegistry()),
+                RateLimitInterceptor.ClientKey.USER);
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertTrue(interceptor.preHandle(request("willy"), response, null));
+        assertEquals("2", response.getHeader(RateLimitInterceptor.RATE_LIMIT_LIMIT));
+        assertEquals("1", response.getHeader(RateLimitInterceptor.RATE_LIMIT_REMAINING));
+        assertTrue(interceptor.preHandle(request("willy"), new MockHttpServletResponse(), null));
+
+        response = new MockHttpServletResponse();
+        assertFalse(interceptor.preHandle(request("willy"), response, null));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS.value(), response.getStatus());
+        assertEquals("0", response.getHeader(RateLimitInterceptor.RATE_LIMIT_REMAINING));
+        assertTrue(Long.parseLong(response.getHeader(HttpHeaders.RETRY_AFTER)) > 0);
+
+        assertTrue(interceptor.preHandle(request("other"), new MockHttpServletResponse(), null));
+    }
+
+    @Test
+    public void concurrentRequestsAreLimitedUntilCompleted() throws Exception {
+        RateLimitInterceptor interceptor = new RateLimitInterceptor(
+                new RateLimiter("test", 1000, 1000, 1, new SimpleMeterRegistry()),
+                RateLimitInterceptor.ClientKey.USER);
+
+        MockHttpServletRequest first = request("willy");
+        assertTrue(interceptor.preHandle(first, new MockHttpServletResponse(), null));
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertFalse(interceptor.preHandle(request("willy"), response, null));
+        assertEquals(HttpStatus.TOO_MANY_REQUESTS.value(), response.getStatus());
+
+        interceptor.afterCompletion(first, new MockHttpServletResponse(), null, null);
+        // Completing a request twice only releases it once
+        interceptor.afterCompletion(first, new MockHttpServletResponse(), null, null);
+        MockHttpServletRequest second = request("willy");
+        assertTrue(interceptor.preHandle(second, new MockHttpServletResponse(), null));
+        assertFalse(interceptor.preHandle(request("willy"), new MockHttpServletResponse(), null));
+    }
+
+    @Test
+    public void onlyIdleClientsAreEvicted() throws Exception {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        RateLimiter limiter = new RateLimiter("test", 1000, 1, 1, meterRegistry);
+
+        RateLimiter.Decision decision = limiter.acquire("willy");
+        assertTrue(decision.isAllowed());
+        limiter.evictIdle();
+        assertEquals(1, meterRegistry.get("invoice.rate-limit.clients").gauge().value(), 0);
+
+        decision.release();
+        // The bucket of one request is full again after the 1 ms interval
+        Thread.sleep(10);
+        limiter.evictIdle();
+        assertEquals(0, meterRegistry.get("invoice.rate-limit.clients").gauge().value(), 0);
+    }
+
+    private static MockHttpServletRequest request(String user) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/invoices/1/pdf");
+        request.setUserPrincipal(new TestingAuthenticationToken(user, ""));
+        return request;
+    }
+
+}
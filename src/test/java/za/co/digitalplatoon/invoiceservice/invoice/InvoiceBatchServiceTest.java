@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import javax.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the validation and JDBC batching of adding batches of invoices
+ *
+ * @author William Gadney
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+    "spring.jpa.properties.hibernate.generate_statistics=true",
+    "invoice.batch.chunk-size=10"
+})
+public class InvoiceBatchServiceTest {
+
+    @Autowired
+    private InvoiceBatchService batchService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private EntityManagerFactory emf;
+
+    @Test
+    public void addReportsErrorsPerInvoice() throws Exception {
+        String valid = json(JasperReportsInvoiceFactory.getInvoice(2));
+        String ndjson = valid + "\n"
+                + valid.replace("\"client\":\"ABC Tranport\",", "") + "\n"
+                + valid.replace("\"vatRate\":15", "\"vatRate\":\"high\"") + "\n"
+                + valid + "\n";
+
+        InvoiceBatchResult result = batchService.add(stream(ndjson), "willy", null);
+
+        assertEquals(2, result.getAdded());
+        assertEquals(2, result.getFailed());
+        assertEquals(4, result.getItems().size());
+        for (int i = 0; i < 4; i++) {
+            InvoiceBatchResult.Item item = result.getItems().get(i);
+            assertEquals(i, item.getIndex());
+            if (i == 0 || i == 3) {
+                assertNotNull(item.getId());
+                assertNull(item.getErrors());
+            } else {
+                assertNull(item.getId());
+                assertEquals(1, item.getErrors().size());
+            }
+        }
+        assertTrue(result.getItems().get(1).getErrors().get(0).startsWith("client: "));
+    }
+
+    @Test
+    public void malformedJsonReturnsTheInvoicesAdded() throws Exception {
+        String valid = json(JasperReportsInvoiceFactory.getInvoice(2));
+        String ndjson = valid + "\n"
+                + valid + "\n"
+                + "{\"client\":}\n"
+                + valid + "\n";
+
+        List<InvoiceBatchResult> progress = new ArrayList<>();
+        InvoiceBatchResult result = batchService.add(stream(ndjson), "willy", progress::add);
+
+        assertEquals(2, result.getAdded());
+        assertEquals(2, result.getItems().size());
+        assertNotNull(result.getItems().get(1).getId());
+        assertNotNull(result.getError());
+        // The progress is recorded with the chunk that was saved
+        assertEquals(1, progress.size());
+        assertEquals(2, progress.get(0).getAdded());
+        assertEquals(result.getItems().get(1).getId(), progress.get(0).getItems().get(1).getId());
+        assertNotNull(progress.get(0).getError());
+    }
+
+    @Test
+    public void addBatchesInserts() throws Exception {
+        List<Invoice> invoices = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            invoices.add(JasperReportsInvoiceFactory.getInvoice(10));
+        }
+        Statistics statistics = emf.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+
+        InvoiceBatchResult result = batchService.add(stream(json(invoices)), null, null);
+
+        assertEquals(20, result.getAdded());
+        // 2 chunks inserting invoices, line items and PDF outbox entries in
+        // batches, plus the sequence calls, instead of 240 inserts
+        assertTrue("Statements " + statistics.getPrepareStatementCount(),
+                statistics.getPrepareStatementCount() <= 13);
+        assertEquals(20, statistics.getEntityStatistics(InvoicePdfOutboxEntry.class.getName()).getInsertCount());
+    }
+
+    private String json(Object value) throws Exception {
+        return objectMapper.writerWithView(Invoice.View.Add.class).writeValueAsString(value);
+    }
+
+    private static ByteArrayInputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
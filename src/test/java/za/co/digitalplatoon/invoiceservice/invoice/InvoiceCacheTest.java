@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.math.BigDecimal;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that committed invoices are read from the second level cache and
+ * that changes replace the cached invoices
+ *
+ * @author William Gadney
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class InvoiceCacheTest {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Autowired
+    private InvoiceRepository invoiceRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private TransactionTemplate transaction;
+
+    private Statistics statistics;
+
+    private Long invoiceId;
+
+    @Before
+    public void setUp() {
+        transaction = new TransactionTemplate(transactionManager);
+        statistics = em.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+        invoiceId = transaction.execute(status -> {
+            Invoice invoice = JasperReportsInvoiceFactory.getInvoice(3);
+            em.persist(invoice);
+            return invoice.getId();
+        });
+    }
+
+    @After
+    public void tearDown() {
+        transaction.execute(status -> {
+            em.remove(em.find(Invoice.class, invoiceId));
+            return null;
+        });
+    }
+
+    @Test
+    public void invoiceIsReadFromCache() {
+        transaction.execute(status -> invoiceRepository.findWithLineItems(invoiceId).getLineItems().size());
+        statistics.clear();
+
+        int lineItemCount = transaction.execute(status -> invoiceRepository.findWithLineItems(invoiceId).getLineItems().size());
+        transaction.execute(status -> em.find(Invoice.class, invoiceId));
+
+        assertEquals(3, lineItemCount);
+        assertEquals(0, statistics.getPrepareStatementCount());
+    }
+
+    @Test
+    public void listIsReadFromQueryCache() {
+        transaction.execute(status -> invoiceRepository.findListPage(null, 10, true));
+        statistics.clear();
+
+        transaction.execute(status -> invoiceRepository.findListPage(null, 10, true));
+
+        assertEquals(0, statistics.getPrepareStatementCount());
+    }
+
+    @Test
+    public void changedInvoiceReplacesCachedInvoice() {
+        transaction.execute(status -> invoiceRepository.findWithLineItems(invoiceId).getLineItems().size());
+        transaction.execute(status -> {
+            em.find(Invoice.class, invoiceId).getLineItems().get(0).setQuantity(100L);
+            return null;
+        });
+
+        Invoice invoice = transaction.execute(status -> invoiceRepository.findWithLineItems(invoiceId));
+
+        assertEquals(Long.valueOf(100), invoice.getLineItems().get(0).getQuantity());
+        assertEquals(new BigDecimal("2.00"), invoice.getLineItems().get(0).getLineItemTotal());
+        assertEquals(Long.valueOf(1), invoice.getVersion());
+    }
+
+}
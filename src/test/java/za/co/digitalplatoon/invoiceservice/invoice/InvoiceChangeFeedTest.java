@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the invoice change feed returns each change once, in order
+ *
+ * @author William Gadney
+ */
+@RunWith(SpringRunner.class)
+// Only notify waiters when the test polls
+@SpringBootTest(properties = "invoice.changes.poll-interval=3600000")
+public class InvoiceChangeFeedTest {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Autowired
+    private InvoiceChangeFeed changeFeed;
+
+    @Autowired
+    private InvoiceRepository invoiceRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private final List<Long> invoiceIds = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        new TransactionTemplate(transactionManager).execute(status -> {
+            invoiceIds.forEach(invoiceId -> em.remove(em.find(Invoice.class, invoiceId)));
+            return null;
+        });
+    }
+
+    @Test
+    public void changesArePagedAndWaitedFor() throws Exception {
+        InvoiceChangeCursor cursor = skipEarlierChanges();
+        Long first = add("Change Feed Client 1");
+        Long second = add("Change Feed Client 2");
+
+        List<Invoice> changes = changeFeed.findChanges(cursor, 1, 0).get();
+        assertEquals(1, changes.size());
+        assertEquals(first, changes.get(0).getId());
+        assertEquals(3, changes.get(0).getLineItems().size());
+        cursor = InvoiceChangeCursor.of(changes.get(0));
+
+        changes = changeFeed.findChanges(cursor, 1, 0).get();
+        assertEquals(1, changes.size());
+        assertEquals(second, changes.get(0).getId());
+        cursor = InvoiceChangeCursor.of(changes.get(0));
+
+        assertTrue(changeFeed.findChanges(cursor, 1, 0).get().isEmpty());
+
+        CompletableFuture<List<Invoice>> waiting = changeFeed.findChanges(cursor, 10, 60000);
+        changeFeed.notifyWaiters();
+        assertFalse(waiting.isDone());
+
+        // A changed invoice appears again after the later changes
+        new TransactionTemplate(transactionManager).execute(status -> {
+            em.find(Invoice.class, first).setClient("Change Feed Client 3");
+            return null;
+        });
+        changeFeed.notifyWaiters();
+
+        changes = waiting.get();
+        assertEquals(1, changes.size());
+        assertEquals(first, changes.get(0).getId());
+        assertEquals("Change Feed Client 3", changes.get(0).getClient());
+    }
+
+    @Test
+    public void lateCommitIsNotSkipped() throws Exception {
+        InvoiceChangeCursor cursor = skipEarlierChanges();
+        CountDownLatch flushed = new CountDownLatch(1);
+        CountDownLatch commit = new CountDownLatch(1);
+        Invoice late = JasperReportsInvoiceFactory.getInvoice(3);
+        late.setClient("Change Feed Late Client");
+        CompletableFuture<Void> lateCommit = CompletableFuture.runAsync(() -> {
+            new TransactionTemplate(transactionManager).execute(status -> {
+                em.persist(late);
+                em.flush();
+                flushed.countDown();
+                try {
+                    commit.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            });
+        });
+        assertTrue(flushed.await(10, TimeUnit.SECONDS));
+        invoiceIds.add(late.getId());
+
+        // The consumer moves past a change that was written later but committed first
+        Long early = add("Change Feed Early Client");
+        List<Invoice> changes = changeFeed.findChanges(cursor, 10, 0).get();
+        assertEquals(1, changes.size());
+        assertEquals(early, changes.get(0).getId());
+        cursor = InvoiceChangeCursor.of(changes.get(0));
+
+        commit.countDown();
+        lateCommit.get(10, TimeUnit.SECONDS);
+        changes = changeFeed.findChanges(cursor, 10, 0).get();
+        assertEquals(1, changes.size());
+        assertEquals(late.getId(), changes.get(0).getId());
+    }
+
+    /**
+     * Create a cursor that skips the changes made before the test
+     */
+    private InvoiceChangeCursor skipEarlierChanges() {
+        Long changeSequence = new TransactionTemplate(transactionManager)
+                .execute(status -> invoiceRepository.findLastChangeSequence());
+        return new InvoiceChangeCursor(changeSequence == null ? 0L : changeSequence, Long.MAX_VALUE);
+    }
+
+    private Long add(String client) {
+        Invoice invoice = JasperReportsInvoiceFactory.getInvoice(3);
+        invoice.setClient(client);
+        new TransactionTemplate(transactionManager).execute(status -> {
+            em.persist(invoice);
+            return null;
+        });
+        invoiceIds.add(invoice.getId());
+        return invoice.getId();
+    }
+
+}
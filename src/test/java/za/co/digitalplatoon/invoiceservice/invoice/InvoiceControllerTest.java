@@ -0,0 +1,204 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.patch;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Checks the conditional requests of the invoice resources
+ *
+ * @author William Gadney
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+// The user is authenticated in the security context rather than by the Keycloak filters
+@AutoConfigureMockMvc(addFilters = false)
+@Transactional
+public class InvoiceControllerTest {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Autowired
+    private EntityManagerFactory emf;
+
+    @Autowired
+    private InvoiceController invoiceController;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    private Long invoiceId;
+
+    @Before
+    public void setUp() {
+        SecurityContextHolder.getContext().setAuthentication(
+                new TestingAuthenticationToken("willy", "", "ROLE_view-invoices", "ROLE_add-invoice"));
+        Invoice invoice = JasperReportsInvoiceFactory.getInvoice(3);
+        em.persist(invoice);
+        em.flush();
+        em.clear();
+        invoiceId = invoice.getId();
+    }
+
+    @After
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void viewInvoiceIsNotModified() throws Exception {
+        ResponseEntity<Invoice> response = invoiceController.viewInvoice(invoiceId, request(null), null);
+        String eTag = response.getHeaders().getETag();
+        assertNotNull(eTag);
+
+        Statistics statistics = emf.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        ServletWebRequest request = request(eTag);
+        assertNull(invoiceController.viewInvoice(invoiceId, request, null));
+        assertEquals(HttpStatus.NOT_MODIFIED.value(), request.getResponse().getStatus());
+        assertEquals(eTag, request.getResponse().getHeader(HttpHeaders.ETAG));
+        // Only the version is queried
+        assertEquals(1, statistics.getPrepareStatementCount());
+    }
+
+    @Test
+    public void viewInvoicePdfIsNotModified() throws Exception {
+        ResponseEntity<StreamingResponseBody> response = invoiceController.viewInvoicePdf(invoiceId, request(null), null).get();
+        String eTag = response.getHeaders().getETag();
+        assertNotNull(eTag);
+        assertNotEquals(invoiceController.viewInvoice(invoiceId, request(null), null).getHeaders().getETag(), eTag);
+
+        ServletWebRequest request = request(eTag);
+        assertNull(invoiceController.viewInvoicePdf(invoiceId, request, null).get());
+        assertEquals(HttpStatus.NOT_MODIFIED.value(), request.getResponse().getStatus());
+    }
+
+    @Test
+    public void binaryRepresentationHasItsOwnETag() throws Exception {
+        String eTag = invoiceController.viewInvoice(invoiceId, request(null), null).getHeaders().getETag();
+        ServletWebRequest request = request(null);
+        ((MockHttpServletRequest) request.getRequest()).addHeader(HttpHeaders.ACCEPT,
+                InvoiceController.APPLICATION_SMILE_VALUE + ", application/json;q=0.5");
+        ResponseEntity<Invoice> response = invoiceController.viewInvoice(invoiceId, request, null);
+        assertNotEquals(eTag, response.getHeaders().getETag());
+        assertEquals(HttpHeaders.ACCEPT, response.getHeaders().getFirst(HttpHeaders.VARY));
+    }
+
+    @Test
+    public void changedInvoiceIsModified() throws Exception {
+        String eTag = invoiceController.viewInvoice(invoiceId, request(null), null).getHeaders().getETag();
+        Invoice invoice = em.find(Invoice.class, invoiceId);
+        invoice.getLineItems().get(0).setQuantity(100L);
+        em.flush();
+        em.clear();
+
+        ResponseEntity<Invoice> response = invoiceController.viewInvoice(invoiceId, request(eTag), null);
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertNotEquals(eTag, response.getHeaders().getETag());
+    }
+
+    @Test
+    public void listWithoutAcceptIsJson() throws Exception {
+        mockMvc.perform(get("/invoices"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON));
+        mockMvc.perform(get("/invoices").accept(MediaType.ALL))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON));
+    }
+
+    @Test
+    public void patchWithoutLineItemsKeepsTheLineItems() throws Exception {
+        Long version = em.find(Invoice.class, invoiceId).getVersion();
+        em.clear();
+        mockMvc.perform(patch("/invoices/{id}", invoiceId)
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("{\"version\":" + version + ",\"client\":\"Patched Client\"}")
+                .accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.client").value("Patched Client"))
+                .andExpect(jsonPath("$.lineItems.length()").value(3));
+        em.clear();
+        assertEquals(3, em.find(Invoice.class, invoiceId).getLineItems().size());
+    }
+
+    @Test
+    public void smileIsWrittenWithTheJsonSettings() throws Exception {
+        byte[] smile = mockMvc.perform(get("/invoices/{id}", invoiceId)
+                .accept(MediaType.valueOf(InvoiceController.APPLICATION_SMILE_VALUE)))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(InvoiceController.APPLICATION_SMILE_VALUE))
+                .andReturn().getResponse().getContentAsByteArray();
+        String json = mockMvc.perform(get("/invoices/{id}", invoiceId).accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andReturn().getResponse().getContentAsString();
+
+        JsonNode smileInvoice = new ObjectMapper(new SmileFactory()).readTree(smile);
+        JsonNode jsonInvoice = new ObjectMapper().readTree(json);
+        // The dates are written as text in the configured time zone
+        assertTrue(smileInvoice.get("lastModified").isTextual());
+        assertEquals(jsonInvoice.get("lastModified"), smileInvoice.get("lastModified"));
+        assertEquals(jsonInvoice.get("invoiceDate"), smileInvoice.get("invoiceDate"));
+        assertEquals(jsonInvoice.get("client"), smileInvoice.get("client"));
+    }
+
+    private static ServletWebRequest request(String ifNoneMatch) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/invoices");
+        if (ifNoneMatch != null) {
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+        }
+        return new ServletWebRequest(request, new MockHttpServletResponse());
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.annotation.Transactional;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the rows of the invoice export formats
+ *
+ * @author William Gadney
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+@Transactional
+public class InvoiceExporterTest {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Autowired
+    private InvoiceExporter exporter;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private InvoiceFilter filter;
+
+    private Long invoiceId;
+
+    @Before
+    public void setUp() {
+        for (String client : new String[]{"Export, \"Quoted\" Client", "Export Client"}) {
+            Invoice invoice = JasperReportsInvoiceFactory.getInvoice(2);
+            invoice.setClient(client);
+            em.persist(invoice);
+            invoiceId = invoice.getId();
+        }
+        em.flush();
+        em.clear();
+        filter = new InvoiceFilter();
+        filter.setClientPrefix("Export");
+    }
+
+    @Test
+    public void csvQuotesFields() throws Exception {
+        String[] lines = export(InvoiceExportFormat.CSV, null).split("\r\n");
+
+        assertEquals(5, lines.length);
+        assertEquals(String.join(",", InvoiceExportRow.COLUMNS), lines[0]);
+        // The quoted client is ordered after "Export Client"
+        assertTrue(lines[4].contains(",\"Export, \"\"Quoted\"\" Client\","));
+        assertEquals(2, export(InvoiceExportFormat.CSV, invoiceId).split("\r\n").length - 1);
+    }
+
+    @Test
+    public void jsonLinesHasOneObjectPerLineItem() throws Exception {
+        String[] lines = export(InvoiceExportFormat.JSON_LINES, null).split("\n");
+
+        assertEquals(4, lines.length);
+        JsonNode row = objectMapper.readTree(lines[0]);
+        assertEquals("Export Client", row.get("client").asText());
+        assertEquals(invoiceId.longValue(), row.get("invoiceId").asLong());
+    }
+
+    @Test
+    public void xlsxHasOneRowPerLineItem() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.export(InvoiceExportFormat.XLSX, null, filter, out);
+
+        try (Workbook workbook = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()))) {
+            Sheet sheet = workbook.getSheetAt(0);
+            assertEquals(4, sheet.getLastRowNum());
+            assertEquals("invoiceId", sheet.getRow(0).getCell(0).getStringCellValue());
+            assertEquals("Export Client", sheet.getRow(1).getCell(1).getStringCellValue());
+        }
+    }
+
+    private String export(InvoiceExportFormat format, Long invoiceId) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.export(format, invoiceId, filter, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+}
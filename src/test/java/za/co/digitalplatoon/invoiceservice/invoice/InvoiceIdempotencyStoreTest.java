@@ -0,0 +1,230 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a request with an idempotency key runs once
+ *
+ * @author William Gadney
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class InvoiceIdempotencyStoreTest {
+
+    private static final Principal WILLY = () -> "willy";
+
+    private static final Object REQUEST = Collections.singletonMap("invoice", 1);
+
+    @Autowired
+    private InvoiceIdempotencyStore idempotencyStore;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final AtomicInteger runs = new AtomicInteger();
+
+    @Test
+    public void retryReceivesTheSavedResponse() {
+        String key = UUID.randomUUID().toString();
+        ResponseEntity<?> first = idempotencyStore.execute("test", WILLY, key, REQUEST, null, this::run);
+        assertNull(first.getHeaders().getFirst(InvoiceIdempotencyStore.IDEMPOTENT_REPLAYED));
+
+        ResponseEntity<?> retry = idempotencyStore.execute("test", WILLY, key, REQUEST, null, this::run);
+        assertEquals(1, runs.get());
+        assertEquals(HttpStatus.CREATED, retry.getStatusCode());
+        assertEquals("true", retry.getHeaders().getFirst(InvoiceIdempotencyStore.IDEMPOTENT_REPLAYED));
+        assertEquals(1, ((JsonNode) retry.getBody()).get("run").asInt());
+
+        // The keys of other users and requests without a key are independent
+        idempotencyStore.execute("test", () -> "other", key, REQUEST, null, this::run);
+        idempotencyStore.execute("test", WILLY, null, REQUEST, null, this::run);
+        assertEquals(3, runs.get());
+    }
+
+    @Test
+    public void keyReusedWithDifferentBodyIsRejected() {
+        String key = UUID.randomUUID().toString();
+        idempotencyStore.execute("test", WILLY, key, REQUEST, null, this::run);
+
+        ResponseEntity<?> retry = idempotencyStore.execute("test", WILLY, key,
+                Collections.singletonMap("invoice", 2), null, this::run);
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, retry.getStatusCode());
+        assertNull(retry.getHeaders().getFirst(InvoiceIdempotencyStore.IDEMPOTENT_REPLAYED));
+        assertEquals(1, runs.get());
+
+        // A successful streamed request is matched against the whole body
+        String streamKey = UUID.randomUUID().toString();
+        idempotencyStore.executeInChunks("test", WILLY, streamKey, body("[1]"), null, (in, checkpoint) -> run());
+        retry = idempotencyStore.executeInChunks("test", WILLY, streamKey, body("[1,2]"), null, (in, checkpoint) -> run());
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, retry.getStatusCode());
+        retry = idempotencyStore.executeInChunks("test", WILLY, streamKey, body("[1]"), null, (in, checkpoint) -> run());
+        assertEquals("true", retry.getHeaders().getFirst(InvoiceIdempotencyStore.IDEMPOTENT_REPLAYED));
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void checkpointIsMatchedAgainstTheBodyRead() {
+        String key = UUID.randomUUID().toString();
+        try {
+            idempotencyStore.executeInChunks("test", WILLY, key, body("[1,2]"), null, (in, checkpoint) -> {
+                read(in, 3);
+                commitChunk(checkpoint);
+                throw new IllegalStateException("The second chunk failed");
+            });
+            fail("The request did not fail");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+        ResponseEntity<?> retry = idempotencyStore.executeInChunks("test", WILLY, key, body("[2,1]"), null, (in, checkpoint) -> run());
+        assertEquals(HttpStatus.UNPROCESSABLE_ENTITY, retry.getStatusCode());
+        retry = idempotencyStore.executeInChunks("test", WILLY, key, body("[1,2]"), null, (in, checkpoint) -> run());
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, retry.getStatusCode());
+        assertEquals("true", retry.getHeaders().getFirst(InvoiceIdempotencyStore.IDEMPOTENT_REPLAYED));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void failedResponseIsNotSaved() {
+        String key = UUID.randomUUID().toString();
+        idempotencyStore.executeInChunks("test", WILLY, key, body("[]"), null, (in, checkpoint) -> {
+            runs.incrementAndGet();
+            return ResponseEntity.badRequest().build();
+        });
+        idempotencyStore.executeInChunks("test", WILLY, key, body("[]"), null, (in, checkpoint) -> run());
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void partlyCommittedRequestIsNotRepeated() {
+        String key = UUID.randomUUID().toString();
+        try {
+            idempotencyStore.executeInChunks("test", WILLY, key, body("[]"), null, (in, checkpoint) -> {
+                commitChunk(checkpoint);
+                throw new IllegalStateException("The second chunk failed");
+            });
+            fail("The request did not fail");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+        ResponseEntity<?> retry = idempotencyStore.executeInChunks("test", WILLY, key, body("[]"), null, (in, checkpoint) -> run());
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, retry.getStatusCode());
+        assertEquals("true", retry.getHeaders().getFirst(InvoiceIdempotencyStore.IDEMPOTENT_REPLAYED));
+        assertEquals(1, ((JsonNode) retry.getBody()).get("run").asInt());
+        assertEquals(1, runs.get());
+
+        // The failed response of a partly committed request replaces the checkpoint
+        String otherKey = UUID.randomUUID().toString();
+        idempotencyStore.executeInChunks("test", WILLY, otherKey, body("[]"), null, (in, checkpoint) -> {
+            commitChunk(checkpoint);
+            return ResponseEntity.badRequest().build();
+        });
+        retry = idempotencyStore.executeInChunks("test", WILLY, otherKey, body("[]"), null, (in, checkpoint) -> run());
+        assertEquals(HttpStatus.BAD_REQUEST, retry.getStatusCode());
+        assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void concurrentDuplicateWaitsForTheFirstResponse() throws Exception {
+        String key = UUID.randomUUID().toString();
+        double replays = meterRegistry.get("invoice.idempotency.replays").counter().count();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Supplier<ResponseEntity<?>> slow = () -> {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return run();
+        };
+        CompletableFuture<ResponseEntity<?>> first = CompletableFuture.supplyAsync(
+                () -> idempotencyStore.execute("test", WILLY, key, REQUEST, null, slow));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        CompletableFuture<ResponseEntity<?>> duplicate = CompletableFuture.supplyAsync(
+                () -> idempotencyStore.execute("test", WILLY, key, REQUEST, null, slow));
+        Thread.sleep(100);
+        assertFalse(duplicate.isDone());
+
+        release.countDown();
+        assertEquals(HttpStatus.CREATED, first.get(10, TimeUnit.SECONDS).getStatusCode());
+        ResponseEntity<?> response = duplicate.get(10, TimeUnit.SECONDS);
+        assertEquals(HttpStatus.CREATED, response.getStatusCode());
+        assertEquals("true", response.getHeaders().getFirst(InvoiceIdempotencyStore.IDEMPOTENT_REPLAYED));
+        assertEquals(1, runs.get());
+        assertEquals(replays + 1, meterRegistry.get("invoice.idempotency.replays").counter().count(), 0);
+    }
+
+    private void commitChunk(InvoiceIdempotencyStore.Checkpoint checkpoint) {
+        new TransactionTemplate(transactionManager).execute(status -> {
+            checkpoint.save(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Collections.singletonMap("run", runs.incrementAndGet())));
+            return null;
+        });
+    }
+
+    private static InputStream body(String body) {
+        return new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void read(InputStream in, int count) {
+        try {
+            for (int i = 0; i < count; i++) {
+                in.read();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private ResponseEntity<?> run() {
+        return ResponseEntity.status(HttpStatus.CREATED).body(Collections.singletonMap("run", runs.incrementAndGet()));
+    }
+
+}
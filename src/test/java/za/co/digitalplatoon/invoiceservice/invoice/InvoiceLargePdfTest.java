@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.lowagie.text.pdf.PdfReader;
+import com.lowagie.text.pdf.RandomAccessFileOrArray;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that an invoice with 100 000 line items renders in a small heap.
+ * <p>
+ * Runs in its own JVM with a small maximum heap size, see the
+ * large-invoice-test execution in the POM.
+ *
+ * @author William Gadney
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "spring.jpa.show-sql=false")
+public class InvoiceLargePdfTest {
+
+    private static final int LINE_ITEM_COUNT = 100_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private InvoiceLargePdfRenderer largePdfRenderer;
+
+    private Long invoiceId;
+
+    @Before
+    public void setUp() {
+        invoiceId = new TransactionTemplate(transactionManager).execute(status -> {
+            Invoice invoice = JasperReportsInvoiceFactory.getInvoice(1);
+            em.persist(invoice);
+            em.flush();
+            // Add the remaining line items in the database without holding them in memory
+            jdbcTemplate.update("INSERT INTO invoice_line_item "
+                    + "(invoice_line_item_id, version, quantity, description, unit_price, line_item_total, invoice_id) "
+                    + "SELECT -x, 0, 1, CONCAT('Line item ', x), 0.01, 0.01, ? "
+                    + "FROM SYSTEM_RANGE(2, ?)", invoice.getId(), LINE_ITEM_COUNT);
+            return invoice.getId();
+        });
+    }
+
+    @After
+    public void tearDown() {
+        jdbcTemplate.update("DELETE FROM invoice_line_item WHERE invoice_id = ?", invoiceId);
+        jdbcTemplate.update("DELETE FROM invoice WHERE invoice_id = ?", invoiceId);
+    }
+
+    @Test
+    public void largeInvoiceRendersInSmallHeap() throws Exception {
+        assertTrue(largePdfRenderer.isLarge(invoiceId));
+
+        File pdf = folder.newFile("invoice.pdf");
+        try (OutputStream out = Files.newOutputStream(pdf.toPath())) {
+            assertEquals(Long.valueOf(0), largePdfRenderer.renderPdf(invoiceId, out));
+        }
+
+        PdfReader reader = new PdfReader(new RandomAccessFileOrArray(pdf.getPath()), null);
+        try {
+            assertTrue("Pages: " + reader.getNumberOfPages(), reader.getNumberOfPages() > 1000);
+        } finally {
+            reader.close();
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the eviction and the tiers of the invoice PDF cache
+ *
+ * @author William Gadney
+ */
+public class InvoicePdfCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MeterRegistry meterRegistry;
+
+    private InvoiceReportTemplates templates;
+
+    @Before
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        templates = new InvoiceReportTemplates(meterRegistry, 0);
+    }
+
+    @Test
+    public void leastRecentlyUsedPdfIsEvictedFromMemory() throws Exception {
+        InvoicePdfCache cache = new InvoicePdfCache(templates, meterRegistry, 250, "", 0);
+        cache.put(1L, 0L, new byte[100]);
+        cache.put(2L, 0L, new byte[100]);
+        assertNotNull(cache.get(1L, 0L));
+        cache.put(3L, 0L, new byte[100]);
+
+        assertNotNull(cache.get(1L, 0L));
+        assertNull(cache.get(2L, 0L));
+        assertNotNull(cache.get(3L, 0L));
+        assertNull(cache.get(1L, 1L));
+        assertEquals(200, cache.getMemorySize());
+        assertEquals(1, count("invoice.pdf.cache.evictions", "memory", null), 0);
+        assertEquals(3, count("invoice.pdf.cache.gets", "memory", "hit"), 0);
+        assertEquals(2, count("invoice.pdf.cache.gets", "memory", "miss"), 0);
+    }
+
+    @Test
+    public void pdfIsStreamedFromDisk() throws Exception {
+        File directory = folder.getRoot();
+        byte[] pdf = "%PDF-1.4".getBytes("US-ASCII");
+        new InvoicePdfCache(templates, meterRegistry, 0, directory.getPath(), 1024).put(1L, 0L, pdf);
+
+        // A new cache finds the PDF file written before the restart
+        InvoicePdfCache cache = new InvoicePdfCache(templates, meterRegistry, 0, directory.getPath(), 1024);
+        cache.loadDiskTier();
+        InvoicePdfCache.CachedPdf cachedPdf = cache.get(1L, 0L);
+        assertNotNull(cachedPdf);
+        assertEquals(pdf.length, cachedPdf.getSize());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cachedPdf.writeTo(out);
+        assertArrayEquals(pdf, out.toByteArray());
+        assertEquals(1, count("invoice.pdf.cache.gets", "disk", "hit"), 0);
+    }
+
+    @Test
+    public void leastRecentlyUsedPdfIsEvictedFromDisk() throws Exception {
+        File directory = folder.getRoot();
+        InvoicePdfCache cache = new InvoicePdfCache(templates, meterRegistry, 0, directory.getPath(), 250);
+        cache.loadDiskTier();
+        cache.put(1L, 0L, new byte[100]);
+        cache.put(2L, 0L, new byte[100]);
+        cache.put(3L, 0L, new byte[100]);
+
+        assertNull(cache.get(1L, 0L));
+        assertNotNull(cache.get(2L, 0L));
+        assertEquals(200, cache.getDiskSize());
+        assertEquals(2, Files.list(directory.toPath()).count());
+        assertEquals(1, count("invoice.pdf.cache.evictions", "disk", null), 0);
+    }
+
+    @Test
+    public void streamedPdfIsCachedWhenCommitted() throws Exception {
+        File directory = folder.getRoot();
+        InvoicePdfCache cache = new InvoicePdfCache(templates, meterRegistry, 0, directory.getPath(), 1024);
+        cache.loadDiskTier();
+        byte[] pdf = "%PDF-1.4".getBytes("US-ASCII");
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try (InvoicePdfCache.CachingOutputStream out = cache.cachingOutput(1L, 0L, response)) {
+            out.write(pdf);
+        }
+        try (InvoicePdfCache.CachingOutputStream out = cache.cachingOutput(2L, 0L, response)) {
+            out.write(pdf);
+            out.commit();
+        }
+
+        assertEquals(2 * pdf.length, response.size());
+        assertNull(cache.get(1L, 0L));
+        assertNotNull(cache.get(2L, 0L));
+        // The temporary file of the PDF file that was not committed is deleted
+        assertEquals(1, Files.list(directory.toPath()).count());
+    }
+
+    @Test
+    public void cacheFailureDoesNotFailTheResponse() throws Exception {
+        File directory = new File(folder.getRoot(), "cache");
+        InvoicePdfCache cache = new InvoicePdfCache(templates, meterRegistry, 0, directory.getPath(), 1024);
+        cache.loadDiskTier();
+        byte[] pdf = "%PDF-1.4".getBytes("US-ASCII");
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try (InvoicePdfCache.CachingOutputStream out = cache.cachingOutput(1L, 0L, response)) {
+            out.write(pdf);
+            // The disk tier is no longer available when the PDF file is committed
+            for (File file : directory.listFiles()) {
+                Files.delete(file.toPath());
+            }
+            Files.delete(directory.toPath());
+            out.commit();
+        }
+
+        assertArrayEquals(pdf, response.toByteArray());
+        assertNull(cache.get(1L, 0L));
+        assertEquals(0, cache.getDiskSize());
+    }
+
+    private double count(String name, String tier, String result) {
+        return result == null
+                ? meterRegistry.get(name).tag("tier", tier).counter().count()
+                : meterRegistry.get(name).tag("tier", tier).tag("result", result).counter().count();
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that the PDF files of committed invoice versions are pre-rendered
+ *
+ * @author William Gadney
+ */
+@RunWith(SpringRunner.class)
+// Only render when the test polls the outbox
+@SpringBootTest(properties = "invoice.pdf-outbox.poll-interval=3600000")
+public class InvoicePdfOutboxTest {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Autowired
+    private InvoicePdfOutbox pdfOutbox;
+
+    @Autowired
+    private InvoicePdfCache pdfCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private Long invoiceId;
+
+    @After
+    public void tearDown() {
+        new TransactionTemplate(transactionManager).execute(status -> {
+            em.remove(em.find(Invoice.class, invoiceId));
+            return null;
+        });
+    }
+
+    @Test
+    public void committedInvoiceIsPreRendered() throws Exception {
+        Invoice invoice = JasperReportsInvoiceFactory.getInvoice(3);
+        new TransactionTemplate(transactionManager).execute(status -> {
+            em.persist(invoice);
+            pdfOutbox.add(invoice);
+            return null;
+        });
+        invoiceId = invoice.getId();
+        assertNull(pdfCache.get(invoiceId, invoice.getVersion()));
+        assertEquals(1, meterRegistry.get("invoice.pdf.outbox.backlog").gauge().value(), 0);
+
+        assertEquals(1, pdfOutbox.renderPending().get(10, TimeUnit.SECONDS).intValue());
+
+        assertNotNull(pdfCache.get(invoiceId, invoice.getVersion()));
+        assertEquals(0, meterRegistry.get("invoice.pdf.outbox.backlog").gauge().value(), 0);
+        assertEquals(1, meterRegistry.get("invoice.pdf.outbox.lag").timer().count());
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the back-pressure and the gauges of the invoice PDF render pool
+ *
+ * @author William Gadney
+ */
+public class InvoicePdfRenderExecutorTest {
+
+    private MeterRegistry meterRegistry;
+
+    private InvoicePdfRenderExecutor executor;
+
+    @Before
+    public void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        executor = new InvoicePdfRenderExecutor(meterRegistry, 1, 1, 10000);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void renderIsRejectedWhenQueueIsFull() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> active = executor.submit(() -> {
+            started.countDown();
+            release.await();
+            return "active";
+        });
+        started.await(10, TimeUnit.SECONDS);
+        CompletableFuture<String> queued = executor.submit(() -> "queued");
+
+        assertEquals(1, meterRegistry.get("invoice.pdf.render.active").gauge().value(), 0);
+        assertEquals(1, meterRegistry.get("invoice.pdf.render.queued").gauge().value(), 0);
+        try {
+            executor.submit(() -> "rejected");
+            fail("The render was not rejected");
+        } catch (RejectedExecutionException ex) {
+            assertEquals(1, meterRegistry.get("invoice.pdf.render.rejected").counter().count(), 0);
+        }
+
+        release.countDown();
+        assertEquals("active", active.get(10, TimeUnit.SECONDS));
+        assertEquals("queued", queued.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void streamIsRenderedOnRenderThread() throws Exception {
+        StreamingResponseBody body = executor.stream(out -> out.write(
+                Thread.currentThread().getName().getBytes(StandardCharsets.UTF_8)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        assertTrue(out.toString("UTF-8").startsWith("invoice-pdf-render-"));
+    }
+
+    @Test
+    public void streamIsRejectedWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> active = executor.submit(() -> {
+            release.await();
+            return "active";
+        });
+        StreamingResponseBody queued = executor.stream(out -> out.write(1));
+        try {
+            executor.stream(out -> out.write(2));
+            fail("The stream was not rejected");
+        } catch (RejectedExecutionException ex) {
+            assertEquals(1, meterRegistry.get("invoice.pdf.render.rejected").counter().count(), 0);
+        }
+
+        release.countDown();
+        assertEquals("active", active.get(10, TimeUnit.SECONDS));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        queued.writeTo(out);
+        assertEquals(1, out.size());
+    }
+
+}
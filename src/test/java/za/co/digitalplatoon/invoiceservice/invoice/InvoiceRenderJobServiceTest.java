@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.util.Collections;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that a render job can only be viewed by the user who submitted it
+ *
+ * @author William Gadney
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class InvoiceRenderJobServiceTest {
+
+    @Autowired
+    private InvoiceRenderJobService renderJobService;
+
+    @Test
+    public void jobIsOnlyFoundForItsSubmitter() {
+        InvoiceRenderJobRequest request = new InvoiceRenderJobRequest();
+        request.setInvoiceIds(Collections.singletonList(-1L));
+        InvoiceRenderJob job = renderJobService.submit(request, "willy");
+
+        assertSame(job, renderJobService.find(job.getId(), "willy"));
+        assertNull(renderJobService.find(job.getId(), "other"));
+        assertNull(renderJobService.find(job.getId(), null));
+    }
+
+}
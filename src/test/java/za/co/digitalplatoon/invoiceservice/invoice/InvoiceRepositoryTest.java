@@ -0,0 +1,192 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.annotation.Transactional;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the number of SQL statements issued by the invoice read shapes
+ *
+ * @author William Gadney
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+@Transactional
+public class InvoiceRepositoryTest {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Autowired
+    private InvoiceRepository invoiceRepository;
+
+    @Autowired
+    private InvoicePdfRenderer pdfRenderer;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private Statistics statistics;
+
+    @Before
+    public void setUp() {
+        statistics = em.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+    }
+
+    @Test
+    public void findWithLineItemsUsesOneStatement() throws Exception {
+        for (int lineItemCount : new int[]{1, 10, 200}) {
+            Long invoiceId = persist(lineItemCount);
+            statistics.clear();
+
+            Invoice invoice = invoiceRepository.findWithLineItems(invoiceId);
+            objectMapper.writerWithView(Invoice.View.All.class).writeValueAsBytes(invoice);
+            pdfRenderer.renderPdf(invoice);
+
+            assertEquals(lineItemCount, invoice.getLineItems().size());
+            assertEquals("Statements for " + lineItemCount + " line items",
+                    1, statistics.getPrepareStatementCount());
+        }
+    }
+
+    @Test
+    public void findListPageLoadsNoLineItems() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            persist(3);
+        }
+        statistics.clear();
+
+        List<InvoiceListItem> page = invoiceRepository.findListPage(null, 20, true);
+        objectMapper.writerWithView(Invoice.View.List.class).writeValueAsBytes(page);
+
+        // Only the statement for the page, without loading the line items
+        assertEquals(1, statistics.getPrepareStatementCount());
+        assertEquals(0, statistics.getCollectionLoadCount());
+    }
+
+    @Test
+    public void findListPageDoesNotLoadInvoices() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            persist(3);
+        }
+        statistics.clear();
+
+        List<InvoiceListItem> page = invoiceRepository.findListPage(null, 20, false);
+        List<InvoiceListItem> pageWithTotals = invoiceRepository.findListPage(null, 20, true);
+
+        assertEquals(2, statistics.getPrepareStatementCount());
+        assertEquals(0, statistics.getEntityLoadCount());
+        assertEquals(0, em.unwrap(Session.class).getStatistics().getEntityCount());
+        assertEquals(20, page.size());
+        assertNull(page.get(0).getTotal());
+        InvoiceListItem item = pageWithTotals.get(0);
+        Invoice invoice = invoiceRepository.find(item.getId());
+        assertEquals(invoice.getClient(), item.getClient());
+        assertEquals(0, invoice.getTotal().compareTo(item.getTotal()));
+    }
+
+    @Test
+    public void summarizeUsesOneStatement() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        for (String invoiceDate : new String[]{"2018-03-31", "2018-04-01", "2018-04-17"}) {
+            Invoice invoice = JasperReportsInvoiceFactory.getInvoice(3);
+            invoice.setClient("Summary Client");
+            invoice.setInvoiceDate(format.parse(invoiceDate));
+            em.persist(invoice);
+        }
+        em.flush();
+        em.clear();
+        statistics.clear();
+
+        InvoiceFilter filter = new InvoiceFilter();
+        filter.setClient("Summary Client");
+        List<InvoiceSummary> summaries = invoiceRepository.summarize(filter, InvoiceSummary.Period.MONTH, true);
+
+        assertEquals(1, statistics.getPrepareStatementCount());
+        assertEquals(2, summaries.size());
+        InvoiceSummary april = summaries.get(1);
+        assertEquals("Summary Client", april.getClient());
+        assertEquals(Integer.valueOf(2018), april.getYear());
+        assertEquals(Integer.valueOf(4), april.getMonth());
+        assertNull(april.getDay());
+        assertEquals(2, april.getInvoiceCount());
+        // Two invoices of 0.29 + 0.04 VAT
+        assertEquals(0, new BigDecimal("0.58").compareTo(april.getSubTotal()));
+        assertEquals(0, new BigDecimal("0.08").compareTo(april.getVat()));
+        assertEquals(0, new BigDecimal("0.66").compareTo(april.getTotal()));
+    }
+
+    @Test
+    public void searchMatchesAllFilters() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        String[][] invoices = {
+            {"Search_1 Alpha", "2018-04-01", "willy"},
+            {"Search_1 Beta", "2018-04-02", "willy"},
+            {"Search_1 Gamma", "2018-04-03", "other"},
+            {"Search_1 Delta", "2018-05-01", "willy"},
+            {"Search_12 Epsilon", "2018-04-01", "willy"}
+        };
+        for (String[] values : invoices) {
+            Invoice invoice = JasperReportsInvoiceFactory.getInvoice(1);
+            invoice.setClient(values[0]);
+            invoice.setInvoiceDate(format.parse(values[1]));
+            invoice.setCreatedBy(values[2]);
+            em.persist(invoice);
+        }
+        em.flush();
+        em.clear();
+
+        InvoiceFilter filter = new InvoiceFilter();
+        // The underscore must not match any character
+        filter.setClientPrefix("Search_1 ");
+        filter.setFromDate(format.parse("2018-04-01"));
+        filter.setToDate(format.parse("2018-04-30"));
+        filter.setCreatedBy("willy");
+        List<Invoice> firstPage = invoiceRepository.search(filter, null, 1);
+        List<Invoice> secondPage = invoiceRepository.search(filter, InvoiceCursor.of(firstPage.get(0)), 10);
+
+        assertEquals(1, firstPage.size());
+        assertEquals("Search_1 Alpha", firstPage.get(0).getClient());
+        assertEquals(1, secondPage.size());
+        assertEquals("Search_1 Beta", secondPage.get(0).getClient());
+    }
+
+    private Long persist(int lineItemCount) {
+        Invoice invoice = JasperReportsInvoiceFactory.getInvoice(lineItemCount);
+        em.persist(invoice);
+        em.flush();
+        em.clear();
+        return invoice.getId();
+    }
+
+}
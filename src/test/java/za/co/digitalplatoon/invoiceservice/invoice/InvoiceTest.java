@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.math.BigDecimal;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validation;
+import javax.validation.Validator;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the stored invoice totals follow changes to the invoice and
+ * that loaded invoices can be validated
+ *
+ * @author William Gadney
+ */
+public class InvoiceTest {
+
+    @Test
+    public void totalsAreCalculatedFromLineItems() {
+        Invoice invoice = JasperReportsInvoiceFactory.getInvoice(3);
+
+        // 2 x 0.02 + 3 x 0.03 + 4 x 0.04
+        assertTotals(invoice, "0.29", "0.04", "0.33");
+    }
+
+    @Test
+    public void totalsFollowLineItemChanges() {
+        Invoice invoice = JasperReportsInvoiceFactory.getInvoice(3);
+        InvoiceLineItem lineItem = invoice.getLineItems().get(0);
+
+        lineItem.setQuantity(12L);
+        assertTotals(invoice, "0.49", "0.07", "0.56");
+
+        lineItem.setUnitPrice(new BigDecimal("1.00"));
+        assertTotals(invoice, "12.25", "1.84", "14.09");
+
+        invoice.removeLineItem(lineItem);
+        assertTotals(invoice, "0.25", "0.04", "0.29");
+
+        invoice.addLineItem(lineItem);
+        assertTotals(invoice, "12.25", "1.84", "14.09");
+
+        invoice.setVatRate(0L);
+        assertTotals(invoice, "12.25", "0.00", "12.25");
+    }
+
+    @Test
+    public void loadedInvoiceDateIsValidated() {
+        Validator validator = Validation.buildDefaultValidatorFactory().getValidator();
+        Invoice invoice = JasperReportsInvoiceFactory.getInvoice(3);
+
+        // Hibernate loads the invoice date as a java.sql.Date
+        invoice.setInvoiceDate(new java.sql.Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+        assertTrue(validator.validate(invoice).isEmpty());
+
+        invoice.setInvoiceDate(new java.sql.Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)));
+        Set<ConstraintViolation<Invoice>> violations = validator.validate(invoice);
+        assertEquals(1, violations.size());
+        assertEquals("invoiceDate", violations.iterator().next().getPropertyPath().toString());
+    }
+
+    private static void assertTotals(Invoice invoice, String subTotal, String vat, String total) {
+        assertEquals(0, new BigDecimal(subTotal).compareTo(invoice.getSubTotal()));
+        assertEquals(new BigDecimal(vat), invoice.getVat());
+        assertEquals(new BigDecimal(total), invoice.getTotal());
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2018 William Gadney.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package za.co.digitalplatoon.invoiceservice.invoice;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceContext;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that invoice updates only write the changes and detect conflicting
+ * changes
+ *
+ * @author William Gadney
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class InvoiceUpdateServiceTest {
+
+    @PersistenceContext
+    private EntityManager em;
+
+    @Autowired
+    private EntityManagerFactory emf;
+
+    @Autowired
+    private InvoiceUpdateService updateService;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private Invoice invoice;
+
+    @Before
+    public void setUp() {
+        invoice = JasperReportsInvoiceFactory.getInvoice(500);
+        new TransactionTemplate(transactionManager).execute(status -> {
+            em.persist(invoice);
+            return null;
+        });
+    }
+
+    @After
+    public void tearDown() {
+        new TransactionTemplate(transactionManager).execute(status -> {
+            em.remove(em.find(Invoice.class, invoice.getId()));
+            return null;
+        });
+    }
+
+    @Test
+    public void changingOneLineItemWritesOnlyThatLineItem() {
+        InvoiceLineItem changed = invoice.getLineItems().get(250);
+        Invoice changes = unchanged();
+        changes.getLineItems().get(250).setQuantity(changed.getQuantity() + 1);
+
+        Statistics statistics = emf.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        Invoice updated = updateService.update(invoice.getId(), changes, true);
+        assertTrue("Statements: " + statistics.getPrepareStatementCount(), statistics.getPrepareStatementCount() <= 5);
+        // The changed line item and the invoice version
+        assertEquals(2, statistics.getEntityUpdateCount());
+
+        assertEquals(500, updated.getLineItems().size());
+        assertNotEquals(invoice.getVersion(), updated.getVersion());
+        assertEquals(0, invoice.getSubTotal().add(changed.getUnitPrice()).compareTo(updated.getSubTotal()));
+    }
+
+    @Test
+    public void unchangedInvoiceKeepsItsVersion() {
+        Invoice changes = unchanged();
+        changes.setClient(invoice.getClient());
+        changes.setVatRate(invoice.getVatRate());
+        changes.setInvoiceDate(invoice.getInvoiceDate());
+
+        Statistics statistics = emf.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        Invoice updated = updateService.update(invoice.getId(), changes, false);
+        assertEquals(0, statistics.getEntityUpdateCount());
+        assertEquals(0, statistics.getEntityInsertCount());
+        assertEquals(invoice.getVersion(), updated.getVersion());
+    }
+
+    @Test
+    public void missingVersionIsRejected() {
+        Invoice changes = unchanged();
+        changes.setVersion(null);
+        try {
+            updateService.update(invoice.getId(), changes, true);
+            fail("The changes without a version were accepted");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+
+        changes = unchanged();
+        changes.getLineItems().get(0).setVersion(null);
+        changes.getLineItems().get(0).setQuantity(invoice.getLineItems().get(0).getQuantity() + 1);
+        try {
+            updateService.update(invoice.getId(), changes, true);
+            fail("The line item changes without a version were accepted");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void lineItemsAreAddedAndRemoved() {
+        Invoice changes = unchanged();
+        changes.getLineItems().remove(0);
+        InvoiceLineItem added = new InvoiceLineItem();
+        added.setDescription("New Widget");
+        added.setQuantity(1L);
+        added.setUnitPrice(new BigDecimal("5.00"));
+        changes.getLineItems().add(added);
+
+        Invoice updated = updateService.update(invoice.getId(), changes, true);
+        assertEquals(500, updated.getLineItems().size());
+        assertFalse(updated.getLineItems().stream()
+                .anyMatch(lineItem -> lineItem.getId().equals(invoice.getLineItems().get(0).getId())));
+        assertTrue(updated.getLineItems().stream()
+                .anyMatch(lineItem -> lineItem.getDescription().equals("New Widget")));
+    }
+
+    @Test
+    public void staleVersionIsRejected() {
+        Invoice changes = new Invoice();
+        changes.setVersion(invoice.getVersion());
+        changes.setClient("First Change");
+        // The line items are not specified
+        changes.setLineItems(null);
+        updateService.update(invoice.getId(), changes, true);
+
+        changes.setClient("Second Change");
+        try {
+            updateService.update(invoice.getId(), changes, true);
+            fail("The stale version was accepted");
+        } catch (OptimisticLockException ex) {
+            // Expected
+        }
+    }
+
+    /**
+     * Create changes that list every line item without changing them
+     */
+    private Invoice unchanged() {
+        Invoice changes = new Invoice();
+        changes.setVersion(invoice.getVersion());
+        List<InvoiceLineItem> lineItems = new ArrayList<>();
+        for (InvoiceLineItem lineItem : invoice.getLineItems()) {
+            InvoiceLineItem unchanged = new InvoiceLineItem();
+            unchanged.setId(lineItem.getId());
+            unchanged.setVersion(lineItem.getVersion());
+            lineItems.add(unchanged);
+        }
+        changes.setLineItems(lineItems);
+        return changes;
+    }
+
+}
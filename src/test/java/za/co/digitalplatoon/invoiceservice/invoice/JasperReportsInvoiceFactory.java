@@ -19,6 +19,7 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A Jasper Reports Invoice Factory used for the development of the invoice report template
@@ -71,4 +72,28 @@ public class JasperReportsInvoiceFactory {
         return invoices;
     }
     
+    /**
+     * Create a new, unsaved invoice dated yesterday
+     * 
+     * @param lineItemCount The number of line items on the invoice
+     * @return The invoice
+     */
+    public static Invoice getInvoice(int lineItemCount) {
+        Invoice invoice = new Invoice();
+        invoice.setClient("ABC Tranport");
+        invoice.setInvoiceDate(new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+        invoice.setVatRate(15L);
+        List<InvoiceLineItem> lineItems = new ArrayList<>();
+        for (int i = 1; i <= lineItemCount; i++) {
+            InvoiceLineItem lineItem = new InvoiceLineItem();
+            lineItem.setInvoice(invoice);
+            lineItem.setDescription("Widget " + i);
+            lineItem.setQuantity((long) (i % 10 + 1));
+            lineItem.setUnitPrice(new BigDecimal(i % 1000 + 1).movePointLeft(2));
+            lineItems.add(lineItem);
+        }
+        invoice.setLineItems(lineItems);
+        return invoice;
+    }
+    
 }